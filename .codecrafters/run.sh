@@ -8,4 +8,6 @@
 
 set -e # Exit on failure
 
-exec java -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"
+# The AppCDS archive written by the build is mapped at startup; the JVM
+# re-creates it on exit if it is missing or was made by a different JDK.
+exec java -XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=/tmp/codecrafters-build-shell-java/codecrafters-shell.jsa -Xlog:cds=off -Xlog:cds+dynamic=off -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"
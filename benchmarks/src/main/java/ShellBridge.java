@@ -0,0 +1,101 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class ShellBridge implements bench.Shell {
+    private final Parser parser = new Parser();
+    private final CommandHash commandHash = new CommandHash();
+    private CompletionIndex completionIndex;
+    private History history;
+    private final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    private final Session session = new Session(Path.of(System.getProperty("user.dir")), System.getenv(),
+            InputStream.nullInputStream(), discard, System.err, false);
+
+    @Override
+    public Object parse(String line) {
+        return parser.parse(line);
+    }
+
+    @Override
+    public String lookup(String command, String pathEnv) {
+        return commandHash.lookup(command, pathEnv);
+    }
+
+    @Override
+    public void clearHash() {
+        commandHash.clear();
+    }
+
+    @Override
+    public String getPath(String command) {
+        return session.getPath(command);
+    }
+
+    @Override
+    public void openCompletionIndex(String pathEnv) {
+        completionIndex = CompletionIndex.start(Main.commands, pathEnv);
+    }
+
+    @Override
+    public List<String> commandMatches(String prefix) {
+        return completionIndex.commandMatches(prefix);
+    }
+
+    @Override
+    public String longestCommonPrefix(List<String> matches) {
+        return CompletionIndex.longestCommonPrefix(matches);
+    }
+
+    // Launches the way Session.runCommand does: resolve, then start with piped output.
+    @Override
+    public Process spawn(String... argv) throws IOException {
+        String[] parts = new Command(argv).externalArgv();
+        if (session.getPath(parts[0]) == null)
+            throw new FileNotFoundException(parts[0]);
+        return new ProcessBuilder(parts).start();
+    }
+
+    @Override
+    public void openHistory(String file) {
+        history = History.open(Path.of(file));
+    }
+
+    @Override
+    public int historySearch(String query, int from) {
+        return history.search(query, from);
+    }
+
+    @Override
+    public String historyGet(int back) {
+        return history.get(back);
+    }
+
+    @Override
+    public List<String> glob(String pattern, String dir) {
+        return Glob.expand(pattern, Path.of(dir));
+    }
+
+    @Override
+    public int runScript(String script) throws IOException, InterruptedException {
+        try {
+            return session.runScript(new BufferedReader(new StringReader(script)));
+        }
+        finally {
+            session.running = true;
+        }
+    }
+
+    @Override
+    public Closeable startDaemon(String socket) throws IOException {
+        return Daemon.start(Path.of(socket));
+    }
+
+    @Override
+    public int connect(String socket, String dir, String script, OutputStream out) throws IOException {
+        SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(Path.of(socket)));
+        return Client.session(channel, Path.of(dir), System.getenv(), new String[] { "-c", script }, false,
+                InputStream.nullInputStream(), out, System.err);
+    }
+}
@@ -0,0 +1,17 @@
+package bench;
+
+import java.util.*;
+
+// Runs JMH and, unless a result format or file is given, writes the results as JSON
+// to jmh-result.json so runs can be compared between releases.
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf") && !options.contains("-rff"))
+            options.addAll(0, List.of("-rf", "json", "-rff", "jmh-result.json"));
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
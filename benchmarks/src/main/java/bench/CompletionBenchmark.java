@@ -0,0 +1,51 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompletionBenchmark {
+    private static final int EXECUTABLES = 10_000;
+
+    // "cmd0" matches 1000 names, "cmd0999" matches one.
+    @Param({"cmd0", "cmd0999"})
+    public String prefix;
+
+    private Shell shell;
+    private Path dir;
+
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.load();
+        dir = Files.createTempDirectory("completion-bench");
+        for (int i = 0; i < EXECUTABLES; i++)
+            Files.createFile(dir.resolve(String.format("cmd%04d", i))).toFile().setExecutable(true);
+        shell.openCompletionIndex(dir.toString());
+        shell.commandMatches("");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<String> getMatches() {
+        return shell.commandMatches(prefix);
+    }
+
+    @Benchmark
+    public String longestCommonPrefix() {
+        return shell.longestCommonPrefix(shell.commandMatches(prefix));
+    }
+}
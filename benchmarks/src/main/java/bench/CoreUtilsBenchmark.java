@@ -0,0 +1,99 @@
+package bench;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// The in-process cat, head, tail and wc (set -o coreutils) against the
+// binaries on PATH, on a generated text file of the given size. Output goes
+// to /dev/null so both sides pay only for reading; cat still has to move
+// every byte. The *Stdin variants give the file as "< file", which a child
+// opens itself and a builtin reads through IoContext.inChannel. One pass
+// over a multi-GB file is the unit of work, hence single-shot timing.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CoreUtilsBenchmark {
+    @Param({ "2147483648" })
+    public long size;
+
+    @Param({ "builtin", "forked" })
+    public String mode;
+
+    private Shell shell;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.load();
+        file = Files.createTempFile("coreutils-bench", ".txt");
+        byte[] line = "the quick brown fox jumps over the lazy dog 0123456789 abcdefgh\n".getBytes();
+        ByteBuffer block = ByteBuffer.allocate(line.length * 16384);
+        while (block.remaining() >= line.length)
+            block.put(line);
+        block.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; ) {
+                block.rewind();
+                if (size - written < block.remaining())
+                    block.limit((int) (size - written));
+                written += channel.write(block);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private int run(String command) throws IOException, InterruptedException {
+        return run(command, " ");
+    }
+
+    private int run(String command, String operator) throws IOException, InterruptedException {
+        String option = mode.equals("builtin") ? "set -o coreutils" : "set +o coreutils";
+        return shell.runScript(option + "\n" + command + operator + file + " > /dev/null\n");
+    }
+
+    @Benchmark
+    public int cat() throws IOException, InterruptedException {
+        return run("cat");
+    }
+
+    @Benchmark
+    public int catStdin() throws IOException, InterruptedException {
+        return run("cat", " < ");
+    }
+
+    @Benchmark
+    public int head() throws IOException, InterruptedException {
+        return run("head -n 1000");
+    }
+
+    @Benchmark
+    public int tail() throws IOException, InterruptedException {
+        return run("tail -n 1000");
+    }
+
+    @Benchmark
+    public int wcLines() throws IOException, InterruptedException {
+        return run("wc -l");
+    }
+
+    @Benchmark
+    public int wc() throws IOException, InterruptedException {
+        return run("wc");
+    }
+
+    @Benchmark
+    public int wcLinesStdin() throws IOException, InterruptedException {
+        return run("wc -l", " < ");
+    }
+}
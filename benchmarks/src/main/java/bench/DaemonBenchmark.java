@@ -0,0 +1,121 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+import org.openjdk.jmh.annotations.*;
+
+// Daemon mode under load: scripted client sessions against a daemon started
+// in this JVM, from several threads at once (session), and in bursts of
+// "sessions" clients connecting together on virtual threads (burst). Each
+// session cds into a directory of its own, writes a file there with a
+// builtin, reads it back and lists the directory with external programs,
+// and has its output checked, so sessions leaking their directory or
+// output into each other fail the run instead of only timing it.
+// coldStart is one such script in a fresh JVM, for comparison.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaemonBenchmark {
+    // Session directories are reused round-robin.
+    private static final int DIRECTORIES = 4096;
+
+    @Param({ "256" })
+    public int sessions;
+
+    private Shell shell;
+    private Path root;
+    private String socket;
+    private Closeable daemon;
+    private Path java;
+    // The benchmarks jar, which holds the shell's classes too.
+    private Path jar;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.load();
+        root = Files.createTempDirectory("daemon-bench");
+        socket = root.resolve("shell.sock").toString();
+        daemon = shell.startDaemon(socket);
+        java = Path.of(System.getProperty("java.home"), "bin", "java");
+        try {
+            jar = Path.of(Shell.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        }
+        catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        daemon.close();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(path);
+        }
+    }
+
+    private static String script(int id) {
+        return "cd s" + id + "\npwd\necho " + id + " > id\ncat id\nls\n";
+    }
+
+    private String expected(int id) {
+        return root.resolve("s" + id) + "\n" + id + "\nid\n";
+    }
+
+    // Runs one session and throws unless it printed exactly its own output.
+    private void session(int id) throws IOException {
+        Files.createDirectories(root.resolve("s" + id));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = shell.connect(socket, root.toString(), script(id), out);
+        check(id, status, out.toString(StandardCharsets.UTF_8));
+    }
+
+    private void check(int id, int status, String output) {
+        if (status != 0 || !output.equals(expected(id)))
+            throw new IllegalStateException("session " + id + " exited " + status + " after printing:\n" + output);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void session() throws IOException {
+        session(next.getAndIncrement() % DIRECTORIES);
+    }
+
+    @Benchmark
+    public void burst() throws Exception {
+        List<Future<?>> started = new ArrayList<>(sessions);
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < sessions; i++) {
+                int id = next.getAndIncrement() % DIRECTORIES;
+                started.add(clients.submit(() -> {
+                    session(id);
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> session : started)
+            session.get();
+    }
+
+    @Benchmark
+    public void coldStart() throws IOException, InterruptedException {
+        int id = next.getAndIncrement() % DIRECTORIES;
+        Files.createDirectories(root.resolve("s" + id));
+        Process p = new ProcessBuilder(java.toString(), "-cp", jar.toString(), "Main", "-c", script(id))
+                .directory(root.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        check(id, p.waitFor(), output);
+    }
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// Glob expansion on a directory of 500k files, with the listing cached (a
+// script repeating a glob) and freshly read (the directory's mtime bumped
+// before each call), and "**" over a tree of a thousand directories.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GlobBenchmark {
+    private static final int FILES = 500_000;
+    private static final int TREE_DIRS = 1_000;
+    private static final int TREE_FILES_PER_DIR = 20;
+
+    private Shell shell;
+    private Path root;
+    private Path flat;
+    private long touches;
+
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.load();
+        root = Files.createTempDirectory("glob-bench");
+        flat = Files.createDirectory(root.resolve("flat"));
+        for (int i = 0; i < FILES; i++)
+            Files.createFile(flat.resolve(String.format("f%06d.%s", i, i % 2 == 0 ? "log" : "tmp")));
+        for (int d = 0; d < TREE_DIRS; d++) {
+            Path dir = Files.createDirectories(root.resolve(String.format("tree/d%02d/e%02d", d / 40, d % 40)));
+            for (int i = 0; i < TREE_FILES_PER_DIR; i++)
+                Files.createFile(dir.resolve(String.format("r%02d.%s", i, i % 4 == 0 ? "json" : "txt")));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Changed {
+        // Makes the cached listing of the flat directory stale.
+        @Setup(Level.Invocation)
+        public void touch(GlobBenchmark benchmark) throws IOException {
+            Files.setLastModifiedTime(benchmark.flat, FileTime.fromMillis(++benchmark.touches * 1000));
+        }
+    }
+
+    @Benchmark
+    public int suffixCached() {
+        return shell.glob("*.log", flat.toString()).size();
+    }
+
+    @Benchmark
+    public int suffixUncached(Changed changed) {
+        return shell.glob("*.log", flat.toString()).size();
+    }
+
+    @Benchmark
+    public int prefixCached() {
+        return shell.glob("f12345?.*", flat.toString()).size();
+    }
+
+    @Benchmark
+    public int globstar() {
+        return shell.glob("tree/**/*.json", root.toString()).size();
+    }
+}
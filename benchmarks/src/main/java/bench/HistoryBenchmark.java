@@ -0,0 +1,54 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// Opening and searching a million-entry history file. A miss scans every
+// entry, which is the worst case for one Ctrl-R keystroke.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int ENTRIES = 1_000_000;
+
+    private Shell shell;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.load();
+        file = Files.createTempFile("history-bench", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < ENTRIES; i++)
+                writer.write("grep -r pattern-" + i + " /var/log/app | sort | uniq -c\n");
+        }
+        shell.openHistory(file.toString());
+        shell.historySearch("no such entry", 0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void open() {
+        shell.openHistory(file.toString());
+        shell.historyGet(0);
+    }
+
+    @Benchmark
+    public int searchRecent() {
+        return shell.historySearch("pattern-999990 ", 0);
+    }
+
+    @Benchmark
+    public int searchMiss() {
+        return shell.historySearch("no such entry", 0);
+    }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+    @Param({"4", "64"})
+    public int pathLength;
+
+    private Shell shell;
+    private Path root;
+    private String pathEnv;
+
+    // The target binary sits in the last PATH directory, so a miss and an
+    // uncached hit both walk the whole PATH.
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.load();
+        root = Files.createTempDirectory("path-bench");
+        List<String> dirs = new ArrayList<>();
+        for (int i = 0; i < pathLength; i++)
+            dirs.add(Files.createDirectory(root.resolve("bin" + i)).toString());
+        Path target = Files.createFile(root.resolve("bin" + (pathLength - 1)).resolve("target"));
+        target.toFile().setExecutable(true);
+        pathEnv = String.join(":", dirs);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var walk = Files.walk(root)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String hashedHit() {
+        return shell.lookup("target", pathEnv);
+    }
+
+    @Benchmark
+    public String uncachedHit() {
+        shell.clearHash();
+        return shell.lookup("target", pathEnv);
+    }
+
+    @Benchmark
+    public String miss() {
+        return shell.lookup("missing", pathEnv);
+    }
+
+    @Benchmark
+    public String getPathFromEnvironment() {
+        return shell.getPath("ls");
+    }
+}
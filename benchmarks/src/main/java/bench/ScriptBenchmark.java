@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// Batch-mode throughput in script lines per second, on a synthetic script of
+// builtins so that process spawning does not dominate, and on a loop of
+// "echo ... >> file" lines for builtin redirection.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptBenchmark {
+    private static final int LINES = 100_000;
+
+    private Shell shell;
+    private String script;
+    private Path log;
+    private String appendScript;
+
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.load();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            switch (i % 4) {
+                case 0:
+                    sb.append("echo 'line ").append(i).append("' \"with quotes\"");
+                    break;
+                case 1:
+                    sb.append("cd . && pwd");
+                    break;
+                case 2:
+                    sb.append("type echo; type cd");
+                    break;
+                default:
+                    sb.append("hash -r");
+            }
+            sb.append('\n');
+        }
+        script = sb.toString();
+        log = Files.createTempFile("script-bench", ".log");
+        sb.setLength(0);
+        for (int i = 0; i < LINES; i++)
+            sb.append("echo 'line ").append(i).append("' >> ").append(log).append('\n');
+        appendScript = sb.toString();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(log);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int linesPerSecond() throws IOException, InterruptedException {
+        return shell.runScript(script);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int appendLinesPerSecond() throws IOException, InterruptedException {
+        int status = shell.runScript(appendScript);
+        Files.write(log, new byte[0]);
+        return status;
+    }
+}
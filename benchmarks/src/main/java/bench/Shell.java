@@ -0,0 +1,54 @@
+package bench;
+
+import java.io.*;
+import java.util.*;
+
+// The shell's classes live in the unnamed package, which code in a named
+// package cannot import, and JMH refuses benchmarks in the unnamed package.
+// ShellBridge (unnamed package) implements this interface and is loaded by
+// name once per trial, so benchmark loops make plain interface calls.
+public interface Shell {
+    static Shell load() {
+        try {
+            return (Shell) Class.forName("ShellBridge").getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Object parse(String line);
+
+    String lookup(String command, String pathEnv);
+
+    void clearHash();
+
+    String getPath(String command);
+
+    void openCompletionIndex(String pathEnv);
+
+    List<String> commandMatches(String prefix);
+
+    String longestCommonPrefix(List<String> matches);
+
+    Process spawn(String... argv) throws IOException;
+
+    void openHistory(String file);
+
+    int historySearch(String query, int from);
+
+    String historyGet(int back);
+
+    // Glob matches for pattern relative to dir.
+    List<String> glob(String pattern, String dir);
+
+    // Runs a script in batch mode with stdout discarded; returns its status.
+    int runScript(String script) throws IOException, InterruptedException;
+
+    // Starts a daemon listening on socket in this JVM; closing it stops it.
+    Closeable startDaemon(String socket) throws IOException;
+
+    // Runs script as a client session of the daemon on socket, started in
+    // dir with stdin empty; returns its status.
+    int connect(String socket, String dir, String script, OutputStream out) throws IOException;
+}
@@ -0,0 +1,41 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpawnBenchmark {
+    private Shell shell;
+    private Process last;
+
+    @Setup
+    public void setup() {
+        shell = Shell.load();
+    }
+
+    // Reaps the child outside the measured region of spawnToFirstByte.
+    @TearDown(Level.Invocation)
+    public void reap() throws InterruptedException {
+        if (last != null) {
+            last.waitFor();
+            last = null;
+        }
+    }
+
+    @Benchmark
+    public int spawnToFirstByte() throws IOException {
+        last = shell.spawn("echo", "x");
+        return last.getInputStream().read();
+    }
+
+    @Benchmark
+    public int spawnToExit() throws IOException, InterruptedException {
+        return shell.spawn("true").waitFor();
+    }
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// Command substitution: a script of lines substituting a builtin (captured
+// in-process), the same lines substituting an external command, and one
+// substitution of a file of the given size read by cat, forked or with
+// set -o coreutils, which is where growing the capture buffer shows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubstitutionBenchmark {
+    private static final int LINES = 100;
+
+    @Param({ "16777216" })
+    public int size;
+
+    private Shell shell;
+    private Path file;
+    private String builtins;
+    private String externals;
+
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.load();
+        file = Files.createTempFile("substitution-bench", ".txt");
+        byte[] line = "the quick brown fox jumps over the lazy dog 0123456789 abcdefgh\n".getBytes();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (int written = 0; written + line.length <= size; written += line.length)
+                out.write(line);
+        }
+        builtins = "echo $(pwd) \"$(echo a b $(echo c))\" > /dev/null\n".repeat(LINES);
+        externals = "echo $(printf x) \"$(printf 'a b\\n\\n')\" > /dev/null\n".repeat(LINES);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int builtinLines() throws IOException, InterruptedException {
+        return shell.runScript(builtins);
+    }
+
+    @Benchmark
+    public int externalLines() throws IOException, InterruptedException {
+        return shell.runScript(externals);
+    }
+
+    private int largeOutput(String option) throws IOException, InterruptedException {
+        return shell.runScript(option + "\necho \"$(cat " + file + ")\" > /dev/null\n");
+    }
+
+    @Benchmark
+    public int largeOutputForked() throws IOException, InterruptedException {
+        return largeOutput("set +o coreutils");
+    }
+
+    @Benchmark
+    public int largeOutputBuiltin() throws IOException, InterruptedException {
+        return largeOutput("set -o coreutils");
+    }
+}
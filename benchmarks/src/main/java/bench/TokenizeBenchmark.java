@@ -0,0 +1,48 @@
+package bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizeBenchmark {
+    @Param({"short", "long", "quoted"})
+    public String input;
+
+    private Shell shell;
+    private String line;
+
+    @Setup
+    public void setup() {
+        shell = Shell.load();
+        StringBuilder sb = new StringBuilder();
+        switch (input) {
+            case "short":
+                sb.append("ls -la /tmp");
+                break;
+            case "long":
+                sb.append("grep -h pattern");
+                for (int i = 0; i < 10_000; i++)
+                    sb.append(" /var/log/app/file-").append(i).append(".log");
+                sb.append(" | sort | uniq -c > counts.txt");
+                break;
+            case "quoted":
+                sb.append("echo");
+                for (int i = 0; i < 2_000; i++)
+                    sb.append(" 'single ").append(i).append("'\"double \\\"").append(i).append("\\\"\"back\\ slash");
+                break;
+            default:
+                throw new IllegalArgumentException(input);
+        }
+        line = sb.toString();
+    }
+
+    @Benchmark
+    public Object tokenize() {
+        return shell.parse(line);
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+// Buffered append-mode channels kept open for a moment after the command
+// that used them, so "echo ... >> log" run line after line costs a stat and
+// a memory copy instead of an open, a write and a close per line. Like the
+// batch-mode stdout buffer, pending bytes are written out before anything
+// else could look at the file: before a child process starts, before the
+// file is truncated, at each prompt and at exit. Channels nobody has used
+// for a second are flushed and closed.
+//
+// Handles are keyed by the absolute, normalized path and know the file's
+// key (inode), so "log", "./log" and a link to it share one buffer and a
+// truncating open of any of them flushes it first. A cached channel is only
+// reused while the path still names the same file; if it was removed or
+// replaced meanwhile, the old one is flushed (to where the earlier commands
+// wrote) and the path is reopened.
+final class AppendHandles {
+    private static final long IDLE_NANOS = 1_000_000_000L;
+    private static final int MAX_OPEN = 16;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final class Handle {
+        final FileChannel channel;
+        final Object fileKey;
+        final PrintStream out;
+        int users;
+        long lastUsed;
+
+        Handle(FileChannel channel, Object fileKey) {
+            this.channel = channel;
+            this.fileKey = fileKey;
+            this.out = new PrintStream(new BufferedOutputStream(new IoContext.ChannelOutput(channel), BUFFER_SIZE), false);
+        }
+    }
+
+    private static final Map<Path, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private static boolean sweeping;
+
+    private AppendHandles() {
+    }
+
+    // Returns the buffered stream appending to file. It is shared by every
+    // command appending to the file, so concurrent writers interleave per
+    // write as they would on separate O_APPEND descriptors. Hand it back
+    // with release() rather than closing it.
+    static synchronized PrintStream acquire(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        Object fileKey = fileKey(file);
+        Handle handle = handles.get(key);
+        if (handle != null && !Objects.equals(handle.fileKey, fileKey)) {
+            handles.remove(key);
+            retire(handle);
+            handle = null;
+        }
+        if (handle == null && fileKey != null) {
+            // Another name for a file already open.
+            for (Handle open : handles.values()) {
+                if (fileKey.equals(open.fileKey)) {
+                    handle = open;
+                    break;
+                }
+            }
+        }
+        if (handle == null) {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            handle = new Handle(channel, fileKey(file));
+            handles.put(key, handle);
+            trim();
+        }
+        handle.users++;
+        return handle.out;
+    }
+
+    // The channel under a stream from acquire(), for writers that bypass
+    // the buffer; they must flush the stream first.
+    static synchronized FileChannel channel(PrintStream out) {
+        for (Handle handle : handles.values()) {
+            if (handle.out == out)
+                return handle.channel;
+        }
+        return null;
+    }
+
+    static synchronized void release(PrintStream out) {
+        Handle handle = null;
+        for (Handle open : handles.values()) {
+            if (open.out == out)
+                handle = open;
+        }
+        if (handle == null) {
+            // Retired while in use; acquire() left it for the last user.
+            flushAndClose(out);
+            return;
+        }
+        handle.users--;
+        handle.lastUsed = System.nanoTime();
+        if (!sweeping) {
+            sweeping = true;
+            Thread.ofVirtual().name("append-handles").start(AppendHandles::sweep);
+        }
+    }
+
+    // Writes out what is buffered for file, under whatever name, before it
+    // is truncated.
+    static synchronized void flush(Path file) {
+        Handle named = handles.get(file.toAbsolutePath().normalize());
+        if (named != null)
+            flush(named.out);
+        Object fileKey = fileKey(file);
+        if (fileKey == null)
+            return;
+        for (Handle handle : handles.values()) {
+            if (fileKey.equals(handle.fileKey))
+                flush(handle.out);
+        }
+    }
+
+    static synchronized void flushAll() {
+        for (Handle handle : handles.values())
+            flush(handle.out);
+    }
+
+    private static void sweep() {
+        while (true) {
+            try {
+                Thread.sleep(IDLE_NANOS / 1_000_000);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            synchronized (AppendHandles.class) {
+                long now = System.nanoTime();
+                for (Iterator<Handle> it = handles.values().iterator(); it.hasNext(); ) {
+                    Handle handle = it.next();
+                    if (handle.users == 0 && now - handle.lastUsed >= IDLE_NANOS) {
+                        it.remove();
+                        flushAndClose(handle.out);
+                    }
+                }
+                if (handles.isEmpty()) {
+                    sweeping = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    // Flushes and closes the least recently used idle channels beyond MAX_OPEN.
+    private static void trim() {
+        for (Iterator<Handle> it = handles.values().iterator(); it.hasNext() && handles.size() > MAX_OPEN; ) {
+            Handle handle = it.next();
+            if (handle.users == 0) {
+                it.remove();
+                flushAndClose(handle.out);
+            }
+        }
+    }
+
+    private static void retire(Handle handle) {
+        if (handle.users == 0)
+            flushAndClose(handle.out);
+        else
+            flush(handle.out);
+    }
+
+    private static Object fileKey(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void flush(PrintStream out) {
+        out.flush();
+    }
+
+    private static void flushAndClose(PrintStream out) {
+        out.close();
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// What a command substitution prints: builtins write here in-process and
+// children's stdout is pumped here (OutputPump). The bytes go in one array,
+// grown by doubling and taken from and given back to a small pool, so the
+// substitutions of a script reuse a few buffers rather than each allocating
+// a ByteArrayOutputStream and copying out of it. Bytes past the limit are
+// counted and dropped, not refused: a child must still have its pipe
+// drained to finish.
+final class Capture extends OutputStream {
+    private static final int INITIAL_SIZE = 8 * 1024;
+    // Larger buffers, grown for multi-MB output, are left to the collector.
+    private static final int MAX_POOLED_SIZE = 1 << 20;
+    private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(16);
+    // The largest array the VM reliably allocates.
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private final int limit;
+    private byte[] buf;
+    private int count;
+    private long dropped;
+
+    Capture(long limit) {
+        this.limit = (int) Math.min(limit, MAX_SIZE);
+        byte[] pooled = pool.poll();
+        buf = pooled != null ? pooled : new byte[INITIAL_SIZE];
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (buf == null || count == limit) {
+            dropped++;
+            return;
+        }
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (buf == null)
+            return;
+        int n = Math.min(len, limit - count);
+        dropped += len - n;
+        ensureCapacity(count + n);
+        System.arraycopy(b, off, buf, count, n);
+        count += n;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > buf.length)
+            buf = Arrays.copyOf(buf, (int) Math.min(Math.max((long) buf.length * 2, size), limit));
+    }
+
+    // Bytes written past the limit.
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    // The output as text, without its trailing newlines. The buffer goes
+    // back to the pool; anything written after this is ignored.
+    synchronized String text() {
+        int end = count;
+        while (end > 0 && buf[end - 1] == '\n')
+            end--;
+        String text = new String(buf, 0, end);
+        if (buf.length <= MAX_POOLED_SIZE)
+            pool.offer(buf);
+        buf = null;
+        return text;
+    }
+}
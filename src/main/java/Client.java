@@ -0,0 +1,129 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import jdk.net.*;
+
+// "Main --connect [args]": runs the shell in a Daemon rather than in this
+// JVM. The arguments mean what they do without --connect; the working
+// directory, environment and stdin are sent along, and the session's
+// output, errors and exit status come back. On a terminal with no
+// arguments the session is interactive, with the terminal set up here the
+// way Main sets up its own.
+final class Client {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Client() {
+    }
+
+    static int run(String[] args) throws IOException, InterruptedException {
+        boolean tty = args.length == 0 && System.console() != null;
+        String saved = tty ? stty("-g").trim() : null;
+        if (tty) {
+            stty("-icanon", "min", "1", "-echo");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> stty(saved)));
+        }
+        Map<String, String> env = System.getenv();
+        Path dir = Path.of(System.getProperty("user.dir"));
+        Path socket = Daemon.socket();
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        }
+        catch (SocketException e) {
+            System.err.printf("shell: no daemon on %s (start one with --daemon)%n", socket);
+            return 2;
+        }
+        // The environment and stdin go only to a daemon of this user's: the
+        // owner of the socket file, and the user the process listening on
+        // it runs as, which a file swapped in after the check cannot fake.
+        UserPrincipal owner = Files.getOwner(socket);
+        UserPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED).user();
+        if (!owner.equals(Daemon.user()) || !peer.equals(Daemon.user())) {
+            channel.close();
+            System.err.printf("shell: %s: daemon belongs to %s, not %s%n", socket,
+                    owner.equals(Daemon.user()) ? peer.getName() : owner.getName(), Daemon.user().getName());
+            return 2;
+        }
+        return session(channel, dir, env, args, tty, new FileInputStream(FileDescriptor.in),
+                new FileOutputStream(FileDescriptor.out), new FileOutputStream(FileDescriptor.err));
+    }
+
+    // One session over channel: sends the setup frames, copies stdin to the
+    // daemon on a daemon thread, and copies frames back until the exit
+    // status arrives.
+    static int session(SocketChannel channel, Path dir, Map<String, String> env, String[] args, boolean tty,
+                       InputStream in, OutputStream out, OutputStream err) throws IOException {
+        try (channel) {
+            Daemon.FrameOutput frames = new Daemon.FrameOutput(channel);
+            frames.write(Daemon.DIR, dir.toString());
+            for (Map.Entry<String, String> variable : env.entrySet())
+                frames.write(Daemon.ENV, variable.getKey() + "=" + variable.getValue());
+            for (String arg : args)
+                frames.write(Daemon.ARG, arg);
+            if (tty)
+                frames.write(Daemon.TTY, "");
+            frames.write(Daemon.START, "");
+            Thread input = new Thread(() -> {
+                byte[] buf = new byte[BUFFER_SIZE];
+                try {
+                    int n;
+                    while ((n = in.read(buf)) > 0)
+                        frames.write(Daemon.INPUT, buf, 0, n);
+                    frames.write(Daemon.INPUT, buf, 0, 0);
+                }
+                catch (IOException ignored) {
+                }
+            }, "client-input");
+            input.setDaemon(true);
+            input.start();
+            DataInputStream from = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+            while (true) {
+                byte type;
+                try {
+                    type = from.readByte();
+                }
+                catch (IOException e) {
+                    err.write("shell: daemon closed the session\n".getBytes(StandardCharsets.UTF_8));
+                    return 1;
+                }
+                byte[] payload = Daemon.readFrame(from);
+                switch (type) {
+                    case Daemon.OUTPUT:
+                        out.write(payload);
+                        break;
+                    case Daemon.ERROR:
+                        err.write(payload);
+                        break;
+                    case Daemon.EXIT:
+                        out.flush();
+                        return ByteBuffer.wrap(payload).getInt();
+                    default:
+                        throw new StreamCorruptedException("frame type " + type);
+                }
+            }
+        }
+    }
+
+    // Runs stty on the terminal and returns what it printed.
+    static String stty(String... args) {
+        List<String> command = new ArrayList<>(List.of("stty"));
+        command.addAll(Arrays.asList(args));
+        try {
+            Process p = new ProcessBuilder(command)
+                    .redirectInput(new File("/dev/tty"))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            String printed = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            p.waitFor();
+            return printed;
+        }
+        catch (IOException | InterruptedException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.*;
+import java.util.*;
+
+final class Command {
+    // A $(...) or `...` at offset in a word's text; quoted if it was inside
+    // double quotes, so that its output is not split into words.
+    record Substitution(int offset, String command, boolean quoted) {
+    }
+
+    final String[] argv;
+    final List<Redirection> redirects;
+    // Glob patterns for the words of argv that have one (see
+    // Lexer.pattern), or null if none do.
+    final String[] patterns;
+    // The substitutions in each word of argv, or null if there are none.
+    final Substitution[][] substitutions;
+
+    Command(String[] argv) {
+        this(argv, List.of());
+    }
+
+    Command(String[] argv, List<Redirection> redirects) {
+        this(argv, null, redirects);
+    }
+
+    Command(String[] argv, String[] patterns, List<Redirection> redirects) {
+        this(argv, patterns, null, redirects);
+    }
+
+    Command(String[] argv, String[] patterns, Substitution[][] substitutions, List<Redirection> redirects) {
+        this.argv = argv;
+        this.patterns = patterns;
+        this.substitutions = substitutions;
+        this.redirects = redirects;
+    }
+
+    // Empty for a command whose words were all substitutions printing
+    // nothing.
+    String name() {
+        return argv.length == 0 ? "" : argv[0];
+    }
+
+    // This command with its substitutions run in session and their output
+    // put in their place, and its glob words replaced by the sorted paths
+    // they match in the session's directory now, so files made by earlier
+    // commands on the line are seen. A pattern matching nothing stays as it
+    // was written. Redirection targets are substituted too, but as POSIX
+    // has it, never split or globbed.
+    Command expand(Session session) throws IOException {
+        List<Redirection> expanded = expandRedirects(session);
+        if (patterns == null && substitutions == null)
+            return expanded == redirects ? this : new Command(argv, expanded);
+        List<String> words = new ArrayList<>(argv.length);
+        for (int j = 0; j < argv.length; j++) {
+            if (substitutions != null && substitutions[j] != null) {
+                substitute(session, argv[j], substitutions[j], words);
+                continue;
+            }
+            List<String> matches = patterns == null || patterns[j] == null ? List.of()
+                    : Glob.expand(patterns[j], session.currentDir);
+            if (matches.isEmpty())
+                words.add(argv[j]);
+            else
+                words.addAll(matches);
+        }
+        return new Command(words.toArray(new String[0]), expanded);
+    }
+
+    // The redirections with the output of their targets' substitutions
+    // spliced in, or redirects itself if they have none.
+    private List<Redirection> expandRedirects(Session session) throws IOException {
+        List<Redirection> expanded = redirects;
+        for (int i = 0; i < redirects.size(); i++) {
+            Redirection redirect = redirects.get(i);
+            if (redirect.substitutions() == null)
+                continue;
+            if (expanded == redirects)
+                expanded = new ArrayList<>(redirects);
+            StringBuilder target = new StringBuilder(redirect.target());
+            Substitution[] subs = redirect.substitutions();
+            // From the last, so the offsets before it still hold.
+            for (int k = subs.length - 1; k >= 0; k--)
+                target.insert(subs[k].offset(), session.substitute(subs[k].command()));
+            expanded.set(i, new Redirection(redirect.fd(), redirect.kind(), target.toString()));
+        }
+        return expanded;
+    }
+
+    // Adds the words that text, with the output of subs spliced in, makes.
+    // Output outside double quotes is split at blanks and newlines, and
+    // makes no word at all if there are none in it.
+    private static void substitute(Session session, String text, Substitution[] subs, List<String> words)
+            throws IOException {
+        StringBuilder word = new StringBuilder(text.length());
+        // Whether word is one, even if empty: "$(true)" is an empty argument.
+        boolean open = false;
+        int at = 0;
+        for (Substitution sub : subs) {
+            if (sub.offset() > at) {
+                word.append(text, at, sub.offset());
+                open = true;
+            }
+            at = sub.offset();
+            String output = session.substitute(sub.command());
+            if (sub.quoted()) {
+                word.append(output);
+                open = true;
+                continue;
+            }
+            for (int i = 0; i < output.length(); i++) {
+                char c = output.charAt(i);
+                if (c == ' ' || c == '\t' || c == '\n') {
+                    if (open)
+                        words.add(word.toString());
+                    word.setLength(0);
+                    open = false;
+                }
+                else {
+                    word.append(c);
+                    open = true;
+                }
+            }
+        }
+        if (at < text.length()) {
+            word.append(text, at, text.length());
+            open = true;
+        }
+        if (open)
+            words.add(word.toString());
+    }
+
+    boolean isBuiltIn(Session session) {
+        return session.isBuiltin(argv);
+    }
+
+    // Mirrors the quote stripping the shell has always applied to external argv.
+    String[] externalArgv() {
+        String[] parts = argv.clone();
+        for (int j = 0; j < parts.length; j++)
+            parts[j] = unquote(parts[j]);
+        return parts;
+    }
+
+    static String unquote(String s) {
+        if (s.length() > 1 &&
+            ((s.startsWith("\"") && s.endsWith("\"")) ||
+             (s.startsWith("'") && s.endsWith("'"))))
+            return s.substring(1, s.length() - 1);
+        return s;
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+// Remembers where each command name was found on PATH, like bash's hash
+// table. The table is dropped when PATH changes, and the modification times
+// of the PATH directories are re-checked at most once per interval so that
+// newly installed or removed binaries are noticed without a stat per lookup;
+// a change there drops only what was found by searching, not names set with
+// "hash -p".
+final class CommandHash {
+    private static final long REVALIDATE_INTERVAL_NANOS = 1_000_000_000L;
+
+    private static final class Entry {
+        final String path;
+        // Set with "hash -p" rather than found on PATH.
+        final boolean pinned;
+        int hits;
+
+        Entry(String path, boolean pinned) {
+            this.path = path;
+            this.pinned = pinned;
+        }
+    }
+
+    private final Map<String, Entry> table = new LinkedHashMap<>();
+    // Whether pathEnv has been set: the first lookup has no table to drop.
+    private boolean synced;
+    private String pathEnv;
+    private String[] dirs = new String[0];
+    private long[] dirMtimes = new long[0];
+    private long lastCheck;
+
+    synchronized String lookup(String command, String pathEnv) {
+        sync(pathEnv);
+        Entry entry = table.get(command);
+        if (entry == null) {
+            String path = search(command);
+            if (path == null || command.contains("/"))
+                return path;
+            entry = new Entry(path, false);
+            table.put(command, entry);
+        }
+        entry.hits++;
+        return entry.path;
+    }
+
+    // Adds a command to the table without running it; returns false if it is not on PATH.
+    synchronized boolean seed(String command, String pathEnv) {
+        sync(pathEnv);
+        if (table.containsKey(command))
+            return true;
+        String path = search(command);
+        if (path == null)
+            return false;
+        table.put(command, new Entry(path, false));
+        return true;
+    }
+
+    synchronized void put(String command, String path) {
+        table.put(command, new Entry(path, true));
+    }
+
+    // Whether path is what a search of PATH found for command, so that
+    // running command by name finds it again; not so for "hash -p" names.
+    synchronized boolean searched(String command, String path) {
+        Entry entry = table.get(command);
+        return entry != null && !entry.pinned && entry.path.equals(path);
+    }
+
+    // An independent table with the same entries, for a subshell.
+    synchronized CommandHash copy() {
+        CommandHash copy = new CommandHash();
+        for (Map.Entry<String, Entry> entry : table.entrySet()) {
+            Entry copied = new Entry(entry.getValue().path, entry.getValue().pinned);
+            copied.hits = entry.getValue().hits;
+            copy.table.put(entry.getKey(), copied);
+        }
+        copy.synced = synced;
+        copy.pathEnv = pathEnv;
+        copy.dirs = dirs;
+        copy.dirMtimes = dirMtimes;
+        copy.lastCheck = lastCheck;
+        return copy;
+    }
+
+    synchronized void clear() {
+        table.clear();
+    }
+
+    synchronized void print(PrintStream out) {
+        if (table.isEmpty()) {
+            out.println("hash: hash table empty");
+            return;
+        }
+        out.println("hits\tcommand");
+        for (Entry entry : table.values())
+            out.printf("%4d\t%s%n", entry.hits, entry.path);
+    }
+
+    private String search(String command) {
+        for (String dir : dirs) {
+            Path fullPath = Path.of(dir, command);
+            if (Files.isRegularFile(fullPath) && Files.isExecutable(fullPath))
+                return fullPath.toString();
+        }
+        return null;
+    }
+
+    private void sync(String pathEnv) {
+        if (!synced || !Objects.equals(pathEnv, this.pathEnv)) {
+            if (synced)
+                table.clear();
+            synced = true;
+            this.pathEnv = pathEnv;
+            dirs = pathEnv == null ? new String[0] : pathEnv.split(":");
+            dirMtimes = new long[dirs.length];
+            for (int i = 0; i < dirs.length; i++)
+                dirMtimes[i] = mtime(dirs[i]);
+            lastCheck = System.nanoTime();
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastCheck < REVALIDATE_INTERVAL_NANOS)
+            return;
+        lastCheck = now;
+        for (int i = 0; i < dirs.length; i++) {
+            long mtime = mtime(dirs[i]);
+            if (mtime != dirMtimes[i]) {
+                dirMtimes[i] = mtime;
+                table.values().removeIf(entry -> !entry.pinned);
+            }
+        }
+    }
+
+    private static long mtime(String dir) {
+        try {
+            return Files.readAttributes(Path.of(dir), BasicFileAttributes.class).lastModifiedTime().toMillis();
+        }
+        catch (IOException | InvalidPathException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Sorted index of command names (builtins plus PATH executables) for tab
+// completion. It is built on a background thread and then kept current by a
+// WatchService on the PATH directories, so a TAB press is a prefix range
+// query on a skip list instead of a listing of every PATH directory.
+final class CompletionIndex {
+    private static final int MAX_CACHED_DIRS = 64;
+
+    // name -> number of PATH directories (or the builtin set) providing it
+    private final ConcurrentSkipListMap<String, Integer> names = new ConcurrentSkipListMap<>();
+    private final Map<Path, Set<String>> dirEntries = new ConcurrentHashMap<>();
+    private final Map<Path, DirListing> listings = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, DirListing> eldest) {
+            return size() > MAX_CACHED_DIRS;
+        }
+    });
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private Thread watcher;
+
+    private record DirListing(long mtime, String[] entries) {
+    }
+
+    private CompletionIndex() {
+    }
+
+    static CompletionIndex start(Collection<String> builtins, String pathEnv) {
+        CompletionIndex index = new CompletionIndex();
+        for (String builtin : builtins)
+            index.names.merge(builtin, 1, Integer::sum);
+        index.watcher = Thread.ofPlatform().daemon().name("completion-index").start(() -> index.run(pathEnv));
+        return index;
+    }
+
+    // Stops watching the PATH directories. Matches are still answered, from
+    // the names as they were.
+    void close() {
+        watcher.interrupt();
+    }
+
+    List<String> commandMatches(String prefix) {
+        try {
+            ready.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new ArrayList<>(names.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+    }
+
+    // Completes a file-name argument relative to dir. Directories come back
+    // with a trailing '/'.
+    List<String> fileMatches(Path dir, String word) {
+        int slash = word.lastIndexOf('/');
+        String dirPart = word.substring(0, slash + 1);
+        String prefix = word.substring(slash + 1);
+        Path searchDir;
+        try {
+            searchDir = dirPart.isEmpty() ? dir : dir.resolve(dirPart);
+        }
+        catch (InvalidPathException e) {
+            return List.of();
+        }
+        String[] entries = listing(searchDir);
+        List<String> results = new ArrayList<>();
+        int i = Arrays.binarySearch(entries, prefix);
+        if (i < 0)
+            i = -i - 1;
+        for (; i < entries.length && entries[i].startsWith(prefix); i++) {
+            if (!prefix.startsWith(".") && entries[i].startsWith("."))
+                continue;
+            results.add(dirPart + entries[i]);
+        }
+        return results;
+    }
+
+    // Matches are sorted, so the common prefix of the first and last is the
+    // common prefix of all of them.
+    static String longestCommonPrefix(List<String> sorted) {
+        if (sorted == null || sorted.isEmpty())
+            return "";
+        String first = sorted.get(0);
+        String last = sorted.get(sorted.size() - 1);
+        int n = Math.min(first.length(), last.length());
+        int i = 0;
+        while (i < n && first.charAt(i) == last.charAt(i))
+            i++;
+        return first.substring(0, i);
+    }
+
+    private String[] listing(Path dir) {
+        long mtime;
+        try {
+            mtime = Files.readAttributes(dir, BasicFileAttributes.class).lastModifiedTime().toMillis();
+        }
+        catch (IOException e) {
+            return new String[0];
+        }
+        DirListing cached = listings.get(dir);
+        if (cached != null && cached.mtime() == mtime)
+            return cached.entries();
+        List<String> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                entries.add(Files.isDirectory(entry) ? name + "/" : name);
+            }
+        }
+        catch (IOException | DirectoryIteratorException e) {
+            return new String[0];
+        }
+        String[] sorted = entries.toArray(new String[0]);
+        Arrays.sort(sorted);
+        listings.put(dir, new DirListing(mtime, sorted));
+        return sorted;
+    }
+
+    private void run(String pathEnv) {
+        List<Path> dirs = new ArrayList<>();
+        if (pathEnv != null) {
+            for (String p : pathEnv.split(":")) {
+                try {
+                    Path dir = Path.of(p).toAbsolutePath().normalize();
+                    if (Files.isDirectory(dir) && !dirs.contains(dir))
+                        dirs.add(dir);
+                }
+                catch (InvalidPathException ignored) {
+                }
+            }
+        }
+        // Watch before the first scan so nothing installed meanwhile is missed.
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Map<WatchKey, Path> keys = new HashMap<>();
+            for (Path dir : dirs) {
+                try {
+                    keys.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                }
+                catch (IOException ignored) {
+                }
+            }
+            for (Path dir : dirs)
+                scan(dir);
+            ready.countDown();
+            while (!keys.isEmpty()) {
+                WatchKey key = watcher.take();
+                Path dir = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        scan(dir);
+                    else
+                        update(dir, ((Path) event.context()).toString());
+                }
+                if (!key.reset())
+                    keys.remove(key);
+            }
+        }
+        catch (IOException | InterruptedException ignored) {
+        }
+        finally {
+            ready.countDown();
+        }
+    }
+
+    private void scan(Path dir) {
+        Set<String> found = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                if (Files.isRegularFile(entry) && Files.isExecutable(entry))
+                    found.add(entry.getFileName().toString());
+            }
+        }
+        catch (IOException | DirectoryIteratorException ignored) {
+        }
+        Set<String> current = ConcurrentHashMap.newKeySet();
+        current.addAll(found);
+        Set<String> previous = dirEntries.put(dir, current);
+        if (previous != null) {
+            for (String name : previous) {
+                if (!found.contains(name))
+                    release(name);
+            }
+        }
+        for (String name : found) {
+            if (previous == null || !previous.contains(name))
+                names.merge(name, 1, Integer::sum);
+        }
+    }
+
+    private void update(Path dir, String name) {
+        Path entry = dir.resolve(name);
+        boolean executable = Files.isRegularFile(entry) && Files.isExecutable(entry);
+        Set<String> current = dirEntries.computeIfAbsent(dir, d -> ConcurrentHashMap.newKeySet());
+        if (executable && current.add(name))
+            names.merge(name, 1, Integer::sum);
+        else if (!executable && current.remove(name))
+            release(name);
+    }
+
+    private void release(String name) {
+        names.computeIfPresent(name, (k, count) -> count == 1 ? null : count - 1);
+    }
+}
@@ -0,0 +1,487 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+// In-process cat, head, tail and wc, used instead of the PATH binaries when
+// "set -o coreutils" is on and the arguments are ones handled here; any
+// other flag falls back to the real program. Files go through NIO: cat hands
+// whole files to FileChannel.transferTo, tail reads backwards from the end
+// of the file, and wc counts over a memory mapping. A regular file on stdin
+// ("cat < f") gets the same treatment, through IoContext.inChannel. Output
+// and messages follow GNU coreutils.
+final class CoreUtils {
+    static final Set<String> NAMES = Set.of("cat", "head", "tail", "wc");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAP_CHUNK = 1L << 30;
+    // What a shell reports for GNU cat or tail writing to a pipe nobody
+    // reads any more: they die of SIGPIPE without a word, and so stop here.
+    private static final int KILLED_BY_SIGPIPE = 128 + 13;
+
+    // Parsed operands: a line count for head/tail, the counts wc prints,
+    // and the files ("-" is stdin) with the directory they are relative to.
+    private static final class Args {
+        long count = 10;
+        boolean lines;
+        boolean words;
+        boolean bytes;
+        final List<String> files = new ArrayList<>();
+        Path dir;
+    }
+
+    private CoreUtils() {
+    }
+
+    static boolean supports(String[] argv) {
+        return NAMES.contains(argv[0]) && parse(argv) != null;
+    }
+
+    static int run(String[] argv, IoContext io, Path dir) {
+        Args args = parse(argv);
+        args.dir = dir;
+        // Pending ">>" output must be in a file before it is read here.
+        AppendHandles.flushAll();
+        switch (argv[0]) {
+            case "cat":
+                return cat(args, io);
+            case "head":
+                return head(args, io);
+            case "tail":
+                return tail(args, io);
+            default:
+                return wc(args, io);
+        }
+    }
+
+    // Returns null for anything the builtins do not implement.
+    private static Args parse(String[] argv) {
+        Args args = new Args();
+        boolean wc = argv[0].equals("wc");
+        boolean counted = argv[0].equals("head") || argv[0].equals("tail");
+        for (int i = 1; i < argv.length; i++) {
+            String arg = argv[i];
+            if (arg.equals("-") || !arg.startsWith("-"))
+                args.files.add(arg);
+            else if (wc) {
+                for (int k = 1; k < arg.length(); k++) {
+                    char c = arg.charAt(k);
+                    if (c == 'l')
+                        args.lines = true;
+                    else if (c == 'w')
+                        args.words = true;
+                    else if (c == 'c')
+                        args.bytes = true;
+                    else
+                        return null;
+                }
+            }
+            else if (counted) {
+                String number;
+                if (arg.equals("-n")) {
+                    if (++i == argv.length)
+                        return null;
+                    number = argv[i];
+                }
+                else if (arg.startsWith("-n"))
+                    number = arg.substring(2);
+                else
+                    number = arg.substring(1);
+                if (number.isEmpty() || number.length() > 18 || !number.chars().allMatch(Character::isDigit))
+                    return null;
+                args.count = Long.parseLong(number);
+            }
+            else
+                return null;
+        }
+        if (wc && !args.lines && !args.words && !args.bytes)
+            args.lines = args.words = args.bytes = true;
+        return args;
+    }
+
+    private static int cat(Args args, IoContext io) {
+        List<String> files = args.files.isEmpty() ? List.of("-") : args.files;
+        WritableByteChannel out = io.outChannel();
+        int status = 0;
+        for (String name : files) {
+            try {
+                if (name.equals("-") && io.inChannel() != null) {
+                    FileChannel stdin = io.inChannel();
+                    transfer(stdin, stdin.position(), out);
+                    stdin.position(stdin.size());
+                }
+                else if (name.equals("-"))
+                    io.in.transferTo(Channels.newOutputStream(out));
+                else {
+                    rejectDirectory(args.dir, name);
+                    try (FileChannel in = open(args.dir, name)) {
+                        transfer(in, 0, out);
+                    }
+                }
+            }
+            catch (IOException e) {
+                if (IoContext.isBrokenPipe(e))
+                    return KILLED_BY_SIGPIPE;
+                io.err.printf("cat: %s: %s%n", name, IoContext.reason(e));
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    private static int head(Args args, IoContext io) {
+        List<String> files = args.files.isEmpty() ? List.of("-") : args.files;
+        int status = 0;
+        boolean first = true;
+        for (String name : files) {
+            if (files.size() > 1) {
+                io.out.printf("%s==> %s <==%n", first ? "" : "\n", name.equals("-") ? "standard input" : name);
+                first = false;
+            }
+            FileChannel channel = null;
+            try {
+                if (!name.equals("-"))
+                    channel = open(args.dir, name);
+            }
+            catch (IOException e) {
+                io.err.printf("head: cannot open '%s' for reading: %s%n", name, IoContext.reason(e));
+                status = 1;
+                continue;
+            }
+            try {
+                if (channel != null)
+                    rejectDirectory(args.dir, name);
+                copyLines(channel == null ? io.in : Channels.newInputStream(channel), io.out, args.count);
+            }
+            catch (IOException e) {
+                io.err.printf("head: error reading '%s': %s%n", name, IoContext.reason(e));
+                status = 1;
+            }
+            finally {
+                if (channel != null)
+                    close(channel);
+            }
+        }
+        return status;
+    }
+
+    private static int tail(Args args, IoContext io) {
+        List<String> files = args.files.isEmpty() ? List.of("-") : args.files;
+        int status = 0;
+        boolean first = true;
+        for (String name : files) {
+            if (files.size() > 1) {
+                io.out.printf("%s==> %s <==%n", first ? "" : "\n", name.equals("-") ? "standard input" : name);
+                first = false;
+            }
+            FileChannel channel;
+            try {
+                FileChannel stdin = io.inChannel();
+                if (name.equals("-") && stdin != null && stdin.size() > 0) {
+                    transfer(stdin, Math.max(stdin.position(), tailStart(stdin, args.count)), io.outChannel());
+                    stdin.position(stdin.size());
+                    continue;
+                }
+                if (name.equals("-")) {
+                    tailStream(io.in, io.out, args.count);
+                    continue;
+                }
+                channel = open(args.dir, name);
+            }
+            catch (IOException e) {
+                if (IoContext.isBrokenPipe(e))
+                    return KILLED_BY_SIGPIPE;
+                io.err.printf("tail: cannot open '%s' for reading: %s%n", name, IoContext.reason(e));
+                status = 1;
+                continue;
+            }
+            try (channel) {
+                rejectDirectory(args.dir, name);
+                if (channel.size() == 0)
+                    tailStream(Channels.newInputStream(channel), io.out, args.count);
+                else
+                    transfer(channel, tailStart(channel, args.count), io.outChannel());
+            }
+            catch (IOException e) {
+                if (IoContext.isBrokenPipe(e))
+                    return KILLED_BY_SIGPIPE;
+                io.err.printf("tail: error reading '%s': %s%n", name, IoContext.reason(e));
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    // Offset of the first of the last `lines` lines, found by reading
+    // blocks backwards from the end. A final newline ends the last line
+    // rather than starting an empty one.
+    private static long tailStart(FileChannel channel, long lines) throws IOException {
+        long size = channel.size();
+        if (lines == 0)
+            return size;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long end = size;
+        long found = 0;
+        while (end > 0) {
+            long start = Math.max(0, end - BUFFER_SIZE);
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+            }
+            for (int p = buffer.position() - 1; p >= 0; p--) {
+                if (buffer.get(p) == '\n' && start + p != size - 1 && ++found == lines)
+                    return start + p + 1;
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    private static int wc(Args args, IoContext io) {
+        List<String> files = args.files.isEmpty() ? Collections.singletonList(null) : args.files;
+        long[][] counts = new long[files.size()][];
+        long regularTotal = 0;
+        boolean irregular = false;
+        int status = 0;
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.get(i);
+            try {
+                // A regular file on stdin sizes the columns as it would
+                // named, as GNU wc's fstat of it does; only a pipe, device
+                // or here-document gets the fixed width.
+                if ((name == null || name.equals("-")) && io.inChannel() != null && io.inChannel().position() == 0) {
+                    regularTotal += io.inChannel().size();
+                    counts[i] = count(io.inChannel(), args);
+                    io.inChannel().position(io.inChannel().size());
+                    continue;
+                }
+                if (name == null || name.equals("-")) {
+                    irregular = true;
+                    counts[i] = count(io.in, args);
+                    continue;
+                }
+                Path path = args.dir.resolve(name);
+                if (Files.isDirectory(path)) {
+                    irregular = true;
+                    counts[i] = new long[3];
+                    throw new IOException("Is a directory");
+                }
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    if (Files.isRegularFile(path)) {
+                        regularTotal += channel.size();
+                        counts[i] = count(channel, args);
+                    }
+                    else {
+                        irregular = true;
+                        counts[i] = count(Channels.newInputStream(channel), args);
+                    }
+                }
+            }
+            catch (IOException e) {
+                io.err.printf("wc: %s: %s%n", name, IoContext.reason(e));
+                status = 1;
+            }
+        }
+        int width = 1;
+        int selected = (args.lines ? 1 : 0) + (args.words ? 1 : 0) + (args.bytes ? 1 : 0);
+        if (files.size() > 1 || selected > 1) {
+            for (; regularTotal >= 10; regularTotal /= 10)
+                width++;
+            if (irregular)
+                width = Math.max(width, 7);
+        }
+        long[] total = new long[3];
+        for (int i = 0; i < files.size(); i++) {
+            if (counts[i] == null)
+                continue;
+            for (int k = 0; k < 3; k++)
+                total[k] += counts[i][k];
+            printCounts(io.out, counts[i], args, width, files.get(i));
+        }
+        if (files.size() > 1)
+            printCounts(io.out, total, args, width, "total");
+        return status;
+    }
+
+    private static void printCounts(PrintStream out, long[] counts, Args args, int width, String name) {
+        StringBuilder line = new StringBuilder();
+        boolean[] shown = { args.lines, args.words, args.bytes };
+        for (int k = 0; k < 3; k++) {
+            if (!shown[k])
+                continue;
+            String number = Long.toString(counts[k]);
+            if (line.length() > 0)
+                line.append(' ');
+            line.append(" ".repeat(Math.max(0, width - number.length()))).append(number);
+        }
+        if (name != null)
+            line.append(' ').append(name);
+        out.println(line);
+    }
+
+    // Counts over a mapping of the file, a gigabyte at a time. Lines alone
+    // are counted eight bytes per step; words need the byte loop.
+    private static long[] count(FileChannel channel, Args args) throws IOException {
+        long size = channel.size();
+        long[] counts = { 0, 0, size };
+        if (!args.lines && !args.words)
+            return counts;
+        byte[] chunk = new byte[BUFFER_SIZE];
+        boolean inWord = false;
+        for (long position = 0; position < size; position += MAP_CHUNK) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK, size - position));
+            if (!args.words) {
+                counts[0] += countNewlines(map.order(ByteOrder.nativeOrder()));
+                continue;
+            }
+            while (map.hasRemaining()) {
+                int n = Math.min(chunk.length, map.remaining());
+                map.get(chunk, 0, n);
+                inWord = countWords(chunk, n, counts, inWord);
+            }
+        }
+        return counts;
+    }
+
+    private static long[] count(InputStream in, Args args) throws IOException {
+        long[] counts = new long[3];
+        byte[] chunk = new byte[BUFFER_SIZE];
+        boolean inWord = false;
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            counts[2] += n;
+            inWord = countWords(chunk, n, counts, inWord);
+        }
+        return counts;
+    }
+
+    // Adds the newlines and word starts in chunk[0, n) to counts.
+    private static boolean countWords(byte[] chunk, int n, long[] counts, boolean inWord) {
+        long lines = 0;
+        long words = 0;
+        for (int i = 0; i < n; i++) {
+            byte b = chunk[i];
+            if (b == '\n')
+                lines++;
+            boolean space = b == ' ' || (b >= '\t' && b <= '\r');
+            if (!space && !inWord)
+                words++;
+            inWord = !space;
+        }
+        counts[0] += lines;
+        counts[1] += words;
+        return inWord;
+    }
+
+    // Counts '\n' bytes a long at a time. In x a byte is zero exactly where
+    // the input byte was a newline; the high bit of the complemented sum
+    // marks those bytes, and shifted down to 0x01 they are added up per byte
+    // lane for up to 255 steps, then the lanes are widened to 16 bits and
+    // summed by a multiply.
+    private static long countNewlines(ByteBuffer map) {
+        long count = 0;
+        int i = 0;
+        int limit = map.limit();
+        while (i + 8 <= limit) {
+            long lanes = 0;
+            int end = Math.min(limit - 7, i + 8 * 255);
+            for (; i < end; i += 8) {
+                long x = map.getLong(i) ^ 0x0a0a0a0a0a0a0a0aL;
+                lanes += ~((x & 0x7f7f7f7f7f7f7f7fL) + 0x7f7f7f7f7f7f7f7fL | x) >>> 7 & 0x0101010101010101L;
+            }
+            lanes = (lanes & 0x00ff00ff00ff00ffL) + (lanes >>> 8 & 0x00ff00ff00ff00ffL);
+            count += lanes * 0x0001000100010001L >>> 48;
+        }
+        for (; i < limit; i++) {
+            if (map.get(i) == '\n')
+                count++;
+        }
+        return count;
+    }
+
+    // Copies from position to the end, then keeps reading in case the file
+    // grew or reports no size (as /proc files do).
+    private static void transfer(FileChannel in, long position, WritableByteChannel out) throws IOException {
+        long size = in.size();
+        while (position < size) {
+            long n = in.transferTo(position, size - position, out);
+            if (n <= 0)
+                break;
+            position += n;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (in.read(buffer, position) > 0) {
+            buffer.flip();
+            position += buffer.remaining();
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    private static void copyLines(InputStream in, PrintStream out, long lines) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long seen = 0;
+        int n;
+        while (seen < lines && (n = in.read(buffer)) > 0) {
+            int end = n;
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == '\n' && ++seen == lines) {
+                    end = i + 1;
+                    break;
+                }
+            }
+            out.write(buffer, 0, end);
+        }
+    }
+
+    // Keeps the last `lines` lines of a stream that cannot be read backwards.
+    private static void tailStream(InputStream in, PrintStream out, long lines) throws IOException {
+        ArrayDeque<byte[]> kept = new ArrayDeque<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] != '\n')
+                    continue;
+                line.write(buffer, start, i + 1 - start);
+                start = i + 1;
+                keep(kept, line.toByteArray(), lines);
+                line.reset();
+            }
+            line.write(buffer, start, n - start);
+        }
+        if (line.size() > 0)
+            keep(kept, line.toByteArray(), lines);
+        for (byte[] bytes : kept)
+            out.write(bytes);
+    }
+
+    private static void keep(ArrayDeque<byte[]> kept, byte[] line, long lines) {
+        if (lines == 0)
+            return;
+        if (kept.size() == lines)
+            kept.removeFirst();
+        kept.addLast(line);
+    }
+
+    private static FileChannel open(Path dir, String name) throws IOException {
+        return FileChannel.open(dir.resolve(name), StandardOpenOption.READ);
+    }
+
+    // Opening a directory succeeds; reading it is what fails.
+    private static void rejectDirectory(Path dir, String name) throws FileSystemException {
+        if (Files.isDirectory(dir.resolve(name)))
+            throw new FileSystemException(name, null, "Is a directory");
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+}
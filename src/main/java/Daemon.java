@@ -0,0 +1,391 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// "Main --daemon": a long-lived shell JVM serving sessions over a Unix
+// domain socket, so that a client (Client, "Main --connect") gets a shell
+// already loaded and JIT-compiled instead of booting one. Every connection
+// is one Session, run on its own virtual thread with the client's working
+// directory, environment, arguments and streams. An interactive session
+// has a History of its own over the shared history file, and completes
+// commands against the PATH its client sent.
+//
+// The socket is $SHELL_SOCKET, or codecrafters-shell.sock in
+// $XDG_RUNTIME_DIR, or failing that in codecrafters-shell-<user>, a
+// directory of the temporary directory that only its owner may enter. It is
+// bound in a private directory and renamed into place once it is
+// readable and writable by its owner only, so there is no moment when
+// another user could connect. Clients check that the daemon answering runs
+// as their own user before sending anything.
+//
+// Both directions are frames of a type byte, a 4-byte big-endian length and
+// that many bytes. The client sends its working directory (DIR), one ENV
+// frame per variable ("NAME=value"), one ARG frame per argument, TTY for an
+// interactive session, then START; after that only INPUT frames, an empty
+// one for end of input. The daemon answers with OUTPUT and ERROR frames and
+// ends with an EXIT frame holding the status as an int.
+final class Daemon implements Closeable {
+    static final byte DIR = 'D';
+    static final byte ENV = 'E';
+    static final byte ARG = 'A';
+    static final byte TTY = 'T';
+    static final byte START = 'S';
+    static final byte INPUT = 'I';
+    static final byte OUTPUT = 'O';
+    static final byte ERROR = 'R';
+    static final byte EXIT = 'X';
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Connections waiting to be accepted; a burst of clients beyond this
+    // fails to connect with EAGAIN.
+    private static final int BACKLOG = 1024;
+    // Client input queued ahead of what the session has read, in frames.
+    private static final int INPUT_AHEAD = 16;
+    private static final String WARM_UP = "echo warm > /dev/null; echo $(pwd) > /dev/null; type echo; pwd; cd /; set -o; hash -r; time echo * > /dev/null\n";
+    private static final int WARM_UP_RUNS = 200;
+    private static final String SOCKET_NAME = "codecrafters-shell.sock";
+    private static final Set<PosixFilePermission> PRIVATE_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+
+    private final Path socket;
+    private final ServerSocketChannel server;
+
+    private Daemon(Path socket, ServerSocketChannel server) {
+        this.socket = socket;
+        this.server = server;
+    }
+
+    static Path socket() {
+        String path = System.getenv("SHELL_SOCKET");
+        if (path != null && !path.isEmpty())
+            return Path.of(path);
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        if (runtime != null && !runtime.isEmpty())
+            return Path.of(runtime, SOCKET_NAME);
+        return privateDirectory().resolve(SOCKET_NAME);
+    }
+
+    private static Path privateDirectory() {
+        return Path.of(System.getProperty("java.io.tmpdir"), "codecrafters-shell-" + System.getProperty("user.name"));
+    }
+
+    // The user this JVM runs as.
+    static UserPrincipal user() throws IOException {
+        return FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+    }
+
+    // Creates dir for this user alone, or checks that the one there is
+    // theirs alone: in the shared temporary directory another user could
+    // have made it first.
+    private static void makePrivate(Path dir) throws IOException {
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PRIVATE_DIRECTORY));
+        }
+        catch (FileAlreadyExistsException ignored) {
+        }
+        PosixFileAttributes attributes = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory() || !attributes.owner().equals(user())
+                || !attributes.permissions().equals(PRIVATE_DIRECTORY))
+            throw new FileSystemException(dir.toString(), null, dir + " is not a directory private to " + user().getName());
+    }
+
+    // Serves until the JVM is killed.
+    static void run(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0) {
+            System.err.println("usage: --daemon (socket from $SHELL_SOCKET)");
+            System.exit(2);
+        }
+        Daemon daemon;
+        try {
+            Path socket = socket();
+            if (socket.getParent().equals(privateDirectory()))
+                makePrivate(socket.getParent());
+            daemon = start(socket);
+        }
+        catch (IOException e) {
+            System.err.printf("daemon: %s: %s%n", socket(), IoContext.reason(e));
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            }
+            catch (IOException ignored) {
+            }
+        }));
+        warmUp();
+        System.err.printf("daemon: listening on %s%n", daemon.socket);
+        Thread.currentThread().join();
+    }
+
+    // Binds socket, replacing a stale one that nothing answers on, and
+    // starts accepting on a virtual thread.
+    static Daemon start(Path socket) throws IOException {
+        if (Files.exists(socket)) {
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+                throw new FileAlreadyExistsException(socket.toString(), null, "a daemon is already listening");
+            }
+            catch (ConnectException e) {
+                Files.delete(socket);
+            }
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        Path staging = Files.createTempDirectory(socket.toAbsolutePath().getParent(), ".bind",
+                PosixFilePermissions.asFileAttribute(PRIVATE_DIRECTORY));
+        Path bound = staging.resolve("s");
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound), BACKLOG);
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        finally {
+            Files.deleteIfExists(bound);
+            Files.delete(staging);
+        }
+        Daemon daemon = new Daemon(socket, server);
+        Thread.ofVirtual().name("daemon-accept").start(daemon::accept);
+        return daemon;
+    }
+
+    // Stops accepting and removes the socket; sessions running go on.
+    @Override
+    public void close() throws IOException {
+        server.close();
+        Files.deleteIfExists(socket);
+    }
+
+    private void accept() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel channel = server.accept();
+                Thread.ofVirtual().name("session").start(() -> serve(channel));
+            }
+            catch (IOException e) {
+                if (server.isOpen())
+                    System.err.printf("daemon: accept: %s%n", e.getMessage());
+            }
+        }
+    }
+
+    // Runs a few lines through a throwaway session until the parser,
+    // builtins, glob and redirection paths are compiled.
+    private static void warmUp() throws IOException, InterruptedException {
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        Session session = new Session(Path.of("/"), System.getenv(), InputStream.nullInputStream(), discard, discard, false);
+        for (int i = 0; i < WARM_UP_RUNS; i++)
+            session.runScript(new BufferedReader(new StringReader(WARM_UP)));
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            DataInputStream from = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            Path dir = Path.of("/");
+            Map<String, String> env = new HashMap<>();
+            List<String> args = new ArrayList<>();
+            boolean tty = false;
+            for (byte type; (type = from.readByte()) != START; ) {
+                String value = new String(readFrame(from), StandardCharsets.UTF_8);
+                switch (type) {
+                    case DIR:
+                        dir = Path.of(value);
+                        break;
+                    case ENV: {
+                        int eq = value.indexOf('=');
+                        if (eq > 0)
+                            env.put(value.substring(0, eq), value.substring(eq + 1));
+                        break;
+                    }
+                    case ARG:
+                        args.add(value);
+                        break;
+                    case TTY:
+                        tty = true;
+                        break;
+                    default:
+                        throw new StreamCorruptedException("frame type " + type);
+                }
+            }
+            readFrame(from);
+            FrameOutput frames = new FrameOutput(channel);
+            PrintStream out = new PrintStream(new BufferedOutputStream(frames.stream(OUTPUT), BUFFER_SIZE), false);
+            PrintStream err = new PrintStream(Session.afterOutput(out, frames.stream(ERROR)), true);
+            Input input = new Input();
+            // A script read from stdin owns it; its commands get none.
+            boolean scriptOnStdin = args.isEmpty() && !tty;
+            Session session = new Session(dir, Collections.unmodifiableMap(env),
+                    scriptOnStdin ? InputStream.nullInputStream() : input, out, err, tty);
+            Thread reader = Thread.ofVirtual().name("session-input").start(() -> {
+                input.readFrom(from);
+                session.hangup();
+            });
+            int status;
+            if (tty) {
+                try (History history = History.open(Main.historyFile(env))) {
+                    history.indexInBackground();
+                    status = session.interact(new LineEditor(input, out, history, () -> session.currentDir,
+                            () -> session.env.get("PATH")));
+                }
+            }
+            else {
+                BufferedReader script = session.openScript(args.toArray(new String[0]), input);
+                status = script == null ? session.lastStatus : session.runScript(script);
+            }
+            out.flush();
+            frames.write(EXIT, ByteBuffer.allocate(4).putInt(status).array(), 0, 4);
+            reader.interrupt();
+        }
+        catch (IOException | InterruptedException ignored) {
+            // The client went away.
+        }
+    }
+
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    // Writes whole frames to a channel shared by several streams. Locks
+    // here are ReentrantLocks, not monitors, which would pin a session's
+    // virtual thread to its carrier while it blocks.
+    static final class FrameOutput {
+        private final WritableByteChannel channel;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        FrameOutput(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(byte type, byte[] b, int off, int len) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(5).put(type).putInt(len).flip();
+            ByteBuffer payload = ByteBuffer.wrap(b, off, len);
+            lock.lock();
+            try {
+                while (header.hasRemaining())
+                    channel.write(header);
+                while (payload.hasRemaining())
+                    channel.write(payload);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        void write(byte type, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            write(type, bytes, 0, bytes.length);
+        }
+
+        // A stream of frames of one type.
+        OutputStream stream(byte type) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (len > 0)
+                        FrameOutput.this.write(type, b, off, len);
+                }
+            };
+        }
+    }
+
+    // The client's stdin as the session reads it. The reader thread queues
+    // INPUT frames a few ahead; a read blocked here can be interrupted (see
+    // Session.feedInput) without losing input or closing the socket, which
+    // interrupting a read on the channel itself would do.
+    private static final class Input extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(INPUT_AHEAD);
+        private final ReentrantLock lock = new ReentrantLock();
+        private byte[] current;
+        private int pos;
+
+        // Queues INPUT frames up to the empty one, then waits for the client
+        // to hang up. If it does so with input unread, that is dropped.
+        void readFrom(DataInputStream in) {
+            try {
+                byte[] frame;
+                while (in.readByte() == INPUT && (frame = readFrame(in)).length > 0)
+                    frames.put(frame);
+                frames.put(END);
+                while (true)
+                    readFrame(in);
+            }
+            catch (IOException e) {
+                frames.clear();
+                frames.offer(END);
+            }
+            catch (InterruptedException ignored) {
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            try {
+                lock.lockInterruptibly();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            try {
+                if (current == null || pos == current.length) {
+                    if (current == END)
+                        return -1;
+                    try {
+                        current = frames.take();
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    pos = 0;
+                    if (current == END)
+                        return -1;
+                }
+                int n = Math.min(len, current.length - pos);
+                System.arraycopy(current, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return current == null ? 0 : current.length - pos;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
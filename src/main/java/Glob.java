@@ -0,0 +1,389 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+// Pathname expansion for words with an unquoted '*', '?' or '[...]' (see
+// Lexer.pattern). A pattern is split at '/' and each component compiled
+// once: literal components are resolved without listing anything, "prefix*
+// suffix" components are matched with startsWith/endsWith, and the rest
+// through a regex. A "**" component matches any number of directories,
+// and the subtrees under it are walked in parallel on the common pool.
+// As in bash, '*' and '?' do not match a leading '.' unless the pattern
+// component starts with one, "**" does not descend into hidden or
+// symlinked directories, and a pattern matching nothing is left alone.
+//
+// Directory listings are read with a DirectoryStream, sorted, and kept for
+// a couple of seconds while the directory's mtime is unchanged, so a script
+// repeating a glob does not rescan the same directories.
+final class Glob {
+    private static final int MAX_CACHED_PATTERNS = 64;
+    private static final int MAX_CACHED_DIRS = 64;
+    private static final long LISTING_TTL_NANOS = 2_000_000_000L;
+    private static final Pattern NOTHING = Pattern.compile("(?!)");
+
+    private static final Map<String, Glob> compiled = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Glob> eldest) {
+            return size() > MAX_CACHED_PATTERNS;
+        }
+    });
+    private static final Map<Path, DirListing> listings = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, DirListing> eldest) {
+            return size() > MAX_CACHED_DIRS;
+        }
+    });
+
+    // Names sorted, with what each is looked up on demand (lstat): 0 not
+    // yet known, 1 directory, 2 symbolic link, 3 anything else. Racing
+    // lookups store the same answer.
+    private record DirListing(FileTime mtime, long loaded, String[] names, byte[] kinds) {
+    }
+
+    // One pattern component. A null literal means it has to be matched;
+    // prefix and suffix are its fixed ends, and regex is null when a '*'
+    // between them is all there is.
+    private record Component(boolean globstar, String literal, String prefix, String suffix, Pattern regex,
+                             boolean hidden) {
+        boolean matches(String name) {
+            if (!hidden && name.startsWith("."))
+                return false;
+            if (name.length() < prefix.length() + suffix.length() || !name.startsWith(prefix) || !name.endsWith(suffix))
+                return false;
+            return regex == null || regex.matcher(name).matches();
+        }
+    }
+
+    private final boolean absolute;
+    private final boolean directoriesOnly;
+    private final Component[] components;
+
+    private Glob(boolean absolute, boolean directoriesOnly, Component[] components) {
+        this.absolute = absolute;
+        this.directoriesOnly = directoriesOnly;
+        this.components = components;
+    }
+
+    // The sorted paths matching pattern, relative to dir unless it is
+    // absolute, in the form the pattern was written; empty if none match.
+    static List<String> expand(String pattern, Path dir) {
+        Glob glob = compiled.get(pattern);
+        if (glob == null) {
+            glob = compile(pattern);
+            compiled.put(pattern, glob);
+        }
+        return glob.match(dir);
+    }
+
+    private List<String> match(Path dir) {
+        Queue<String> found = new ConcurrentLinkedQueue<>();
+        Path start = absolute ? dir.getRoot() : dir;
+        if (components.length > 0)
+            walk(start, absolute ? "/" : "", 0, found);
+        String[] sorted = found.toArray(new String[0]);
+        Arrays.sort(sorted);
+        List<String> matches = new ArrayList<>(sorted.length);
+        for (String path : sorted) {
+            if (matches.isEmpty() || !matches.get(matches.size() - 1).equals(path))
+                matches.add(path);
+        }
+        return matches;
+    }
+
+    // Matches components[index..] under dir; shown is how dir is written
+    // in the results ("" or ending in '/').
+    private void walk(Path dir, String shown, int index, Queue<String> found) {
+        Component component = components[index];
+        boolean last = index == components.length - 1;
+        if (component.globstar) {
+            // A trailing "dir/**" also matches "dir/" itself.
+            if (last && !shown.isEmpty() && Files.isDirectory(dir))
+                found.add(shown);
+            globstar(dir, shown, index, found);
+            return;
+        }
+        if (component.literal != null) {
+            Path next = dir.resolve(component.literal);
+            if (!last)
+                walk(next, shown + component.literal + "/", index + 1, found);
+            else if (directoriesOnly ? Files.isDirectory(next) : Files.exists(next, LinkOption.NOFOLLOW_LINKS))
+                found.add(shown + component.literal + (directoriesOnly ? "/" : ""));
+            return;
+        }
+        DirListing listing = listing(dir);
+        if (listing == null)
+            return;
+        String[] names = listing.names();
+        int i = 0;
+        if (!component.prefix.isEmpty()) {
+            i = Arrays.binarySearch(names, component.prefix);
+            if (i < 0)
+                i = -i - 1;
+        }
+        for (; i < names.length && names[i].startsWith(component.prefix); i++) {
+            String name = names[i];
+            if (!component.matches(name))
+                continue;
+            if (last && !directoriesOnly)
+                found.add(shown + name);
+            else if (isDirectory(listing, dir, i, true)) {
+                if (last)
+                    found.add(shown + name + "/");
+                else
+                    walk(dir.resolve(name), shown + name + "/", index + 1, found);
+            }
+        }
+    }
+
+    // "**": the rest of the pattern is matched in dir itself and in every
+    // directory below it; a trailing "**" matches everything below dir.
+    private void globstar(Path dir, String shown, int index, Queue<String> found) {
+        boolean last = index == components.length - 1;
+        if (!last)
+            walk(dir, shown, index + 1, found);
+        DirListing listing = listing(dir);
+        if (listing == null)
+            return;
+        List<RecursiveAction> subtrees = new ArrayList<>();
+        String[] names = listing.names();
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (name.startsWith("."))
+                continue;
+            boolean directory = isDirectory(listing, dir, i, false);
+            if (last && (directory || !directoriesOnly))
+                found.add(shown + name + (directory && directoriesOnly ? "/" : ""));
+            if (directory) {
+                Path next = dir.resolve(name);
+                subtrees.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        globstar(next, shown + name + "/", index, found);
+                    }
+                });
+            }
+        }
+        if (subtrees.isEmpty())
+            return;
+        if (ForkJoinTask.inForkJoinPool())
+            ForkJoinTask.invokeAll(subtrees);
+        else
+            ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(subtrees);
+                }
+            });
+    }
+
+    // follow: whether a symlink to a directory counts, as it does for
+    // "*/" but not when "**" descends.
+    private static boolean isDirectory(DirListing listing, Path dir, int i, boolean follow) {
+        Path entry = dir.resolve(listing.names()[i]);
+        byte kind = listing.kinds()[i];
+        if (kind == 0) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                kind = attributes.isDirectory() ? (byte) 1 : attributes.isSymbolicLink() ? (byte) 2 : (byte) 3;
+            }
+            catch (IOException e) {
+                kind = 3;
+            }
+            listing.kinds()[i] = kind;
+        }
+        return kind == 1 || kind == 2 && follow && Files.isDirectory(entry);
+    }
+
+    private static DirListing listing(Path dir) {
+        FileTime mtime;
+        try {
+            mtime = Files.readAttributes(dir, BasicFileAttributes.class).lastModifiedTime();
+        }
+        catch (IOException e) {
+            return null;
+        }
+        Path key = dir.toAbsolutePath().normalize();
+        long now = System.nanoTime();
+        DirListing cached = listings.get(key);
+        if (cached != null && cached.mtime().equals(mtime) && now - cached.loaded() < LISTING_TTL_NANOS)
+            return cached;
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream)
+                names.add(entry.getFileName().toString());
+        }
+        catch (IOException | DirectoryIteratorException e) {
+            return null;
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        DirListing listing = new DirListing(mtime, now, sorted, new byte[sorted.length]);
+        listings.put(key, listing);
+        return listing;
+    }
+
+    private static Glob compile(String pattern) {
+        boolean absolute = pattern.startsWith("/");
+        boolean directoriesOnly = pattern.endsWith("/");
+        List<Component> components = new ArrayList<>();
+        for (String part : pattern.split("/")) {
+            if (!part.isEmpty())
+                components.add(component(part));
+        }
+        return new Glob(absolute, directoriesOnly, components.toArray(new Component[0]));
+    }
+
+    // Translates one component: '*', '?' and '[...]' (with '!' or '^' to
+    // negate and [:class:] names) become regex; '\x' is a literal x.
+    private static Component component(String part) {
+        if (part.equals("**"))
+            return new Component(true, null, "", "", null, false);
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        StringBuilder prefix = null;
+        int stars = 0;
+        boolean other = false;
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c == '\\' && i + 1 < part.length()) {
+                c = part.charAt(++i);
+                literal.append(c);
+                quote(regex, c);
+                continue;
+            }
+            int close = c == '[' ? bracketEnd(part, i) : -1;
+            if (c != '*' && c != '?' && close < 0) {
+                literal.append(c);
+                quote(regex, c);
+                continue;
+            }
+            if (prefix == null)
+                prefix = new StringBuilder(literal);
+            if (c == '*') {
+                stars++;
+                regex.append(".*");
+            }
+            else if (c == '?') {
+                other = true;
+                regex.append('.');
+            }
+            else {
+                other = true;
+                bracket(regex, part.substring(i + 1, close));
+                i = close;
+            }
+            literal.setLength(0);
+        }
+        boolean hidden = part.startsWith(".");
+        if (prefix == null)
+            return new Component(false, literal.toString(), "", "", null, hidden);
+        String suffix = literal.toString();
+        // "prefix*suffix" needs no regex.
+        boolean simple = stars == 1 && !other;
+        return new Component(false, null, prefix.toString(), suffix, simple ? null : regex(regex.toString()), hidden);
+    }
+
+    // A bracket expression no regex can express, such as a reversed range
+    // ("[z-a]") or one left empty by an unknown class ("[[:bogus:]]"),
+    // matches nothing, as in bash, so the word stays as written.
+    private static Pattern regex(String regex) {
+        try {
+            return Pattern.compile(regex, Pattern.DOTALL);
+        }
+        catch (PatternSyntaxException e) {
+            return NOTHING;
+        }
+    }
+
+    // Index of the ']' closing the bracket expression at open, or -1 if it
+    // is not one (then '[' is literal). A ']' first in the set is a member.
+    private static int bracketEnd(String part, int open) {
+        int i = open + 1;
+        if (i < part.length() && (part.charAt(i) == '!' || part.charAt(i) == '^'))
+            i++;
+        if (i < part.length() && part.charAt(i) == ']')
+            i++;
+        for (; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c == '[' && i + 1 < part.length() && part.charAt(i + 1) == ':') {
+                int end = part.indexOf(":]", i + 2);
+                if (end > 0) {
+                    i = end + 1;
+                    continue;
+                }
+            }
+            if (c == '\\')
+                i++;
+            else if (c == ']')
+                return i;
+        }
+        return -1;
+    }
+
+    private static void bracket(StringBuilder regex, String set) {
+        regex.append('[');
+        int first = 0;
+        if (!set.isEmpty() && (set.charAt(0) == '!' || set.charAt(0) == '^')) {
+            regex.append('^');
+            first++;
+        }
+        for (int i = first; i < set.length(); i++) {
+            char c = set.charAt(i);
+            if (c == '[' && set.startsWith(":", i + 1)) {
+                int end = set.indexOf(":]", i + 2);
+                if (end > 0) {
+                    regex.append(characterClass(set.substring(i + 2, end)));
+                    i = end + 1;
+                    continue;
+                }
+            }
+            if (c == '\\' && i + 1 < set.length())
+                c = set.charAt(++i);
+            if (c == '-' && i > first && i + 1 < set.length())
+                regex.append('-');
+            else
+                quote(regex, c);
+        }
+        regex.append(']');
+    }
+
+    private static String characterClass(String name) {
+        switch (name) {
+            case "alpha":
+                return "\\p{Alpha}";
+            case "digit":
+                return "\\p{Digit}";
+            case "alnum":
+                return "\\p{Alnum}";
+            case "upper":
+                return "\\p{Upper}";
+            case "lower":
+                return "\\p{Lower}";
+            case "space":
+                return "\\s";
+            case "punct":
+                return "\\p{Punct}";
+            case "xdigit":
+                return "\\p{XDigit}";
+            case "blank":
+                return " \\t";
+            case "cntrl":
+                return "\\p{Cntrl}";
+            case "print":
+                return "\\p{Print}";
+            case "graph":
+                return "\\p{Graph}";
+            default:
+                return "";
+        }
+    }
+
+    private static void quote(StringBuilder regex, char c) {
+        if (!Character.isLetterOrDigit(c))
+            regex.append('\\');
+        regex.append(c);
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// A here-document, "<<word" or "<<-word": the lines after the command line
+// up to one that is word alone ("<<-" strips leading tabs first). The
+// parser leaves a placeholder Redirection that read() replaces once the
+// body has been read. Bodies are taken literally, as if word were quoted.
+//
+// A body up to SPILL_SIZE is kept as the HERE redirection's text and
+// written to the command's stdin. A longer one goes on, a block at a time,
+// to a temporary file that the command reads as "< file": a child is
+// handed the file itself (Redirect.from) and a builtin a channel on it, so
+// the body is never held in memory whole.
+final class HereDoc {
+    // Where the body comes from: the script, or the terminal with a "> "
+    // prompt.
+    interface Lines {
+        String readLine() throws IOException;
+    }
+
+    private static final int SPILL_SIZE = 64 * 1024;
+
+    private final String delimiter;
+    private final boolean stripTabs;
+    private final List<Redirection> redirects;
+    private final int index;
+    // The temporary file a long body went to, or null.
+    private Path spilled;
+
+    HereDoc(String delimiter, boolean stripTabs, List<Redirection> redirects, int index) {
+        this.delimiter = delimiter;
+        this.stripTabs = stripTabs;
+        this.redirects = redirects;
+        this.index = index;
+    }
+
+    // Reads the body from lines. End of input also ends it, with the
+    // warning other shells print.
+    void read(Lines lines, PrintStream err) throws IOException {
+        StringBuilder body = new StringBuilder();
+        Writer file = null;
+        try {
+            while (true) {
+                String line = lines.readLine();
+                if (line == null) {
+                    err.printf("warning: here-document delimited by end-of-file (wanted `%s')%n", delimiter);
+                    break;
+                }
+                if (stripTabs) {
+                    int tabs = 0;
+                    while (tabs < line.length() && line.charAt(tabs) == '\t')
+                        tabs++;
+                    line = line.substring(tabs);
+                }
+                if (line.equals(delimiter))
+                    break;
+                body.append(line).append('\n');
+                if (body.length() >= SPILL_SIZE) {
+                    if (file == null) {
+                        spilled = Files.createTempFile("heredoc", null);
+                        file = Files.newBufferedWriter(spilled);
+                    }
+                    file.append(body);
+                    body.setLength(0);
+                }
+            }
+            if (file == null) {
+                redirects.set(index, new Redirection(0, Redirection.Kind.HERE, body.toString()));
+                return;
+            }
+            file.append(body);
+            redirects.set(index, new Redirection(0, Redirection.Kind.READ, spilled.toString()));
+        }
+        finally {
+            if (file != null)
+                file.close();
+        }
+    }
+
+    void delete() {
+        if (spilled == null)
+            return;
+        try {
+            Files.deleteIfExists(spilled);
+        }
+        catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Command history kept in an append-only file of newline-terminated UTF-8
+// lines. Loading only maps the file; entries are indexed from the end, on
+// demand and by a background thread, so startup does not depend on the size
+// of the history. New lines are appended under a file lock, one write per
+// line, so concurrent shells never interleave or drop entries. Each shell,
+// and each daemon session, has an instance of its own: lines it adds are
+// its own until another one opens the file afresh.
+//
+// For search, every block of 64 indexed entries gets a 4096-bit Bloom filter
+// of the byte trigrams it contains; a query skips any block missing one of
+// its trigrams, so most of a large history is never compared byte by byte.
+//
+// Entries are addressed by age: 0 is the most recent.
+final class History implements Closeable {
+    // Appends from this JVM one at a time, as the JVM refuses a second
+    // FileLock on a file it has locked. A ReentrantLock rather than a
+    // monitor, so that a daemon session's virtual thread waiting for it is
+    // not pinned to its carrier.
+    private static final ReentrantLock APPEND_LOCK = new ReentrantLock();
+    private static final int BLOCK = 64;
+    private static final int BLOOM_LONGS = 64;
+    private static final int INDEX_STEP = 4096;
+
+    private final Path file;
+    private final ByteBuffer map;
+    private final boolean truncated;
+    // Mapped entries already indexed, newest first: [starts[i], ends[i]).
+    private int[] starts = new int[256];
+    private int[] ends = new int[256];
+    private int indexed;
+    private int limit;
+    // Lines added by this session, oldest first; they are newer than the map.
+    private String[] added = new String[16];
+    private int addedCount;
+    private FileChannel appender;
+    private byte[] scratch = new byte[256];
+    private long[] blooms = new long[BLOOM_LONGS * 4];
+
+    private History(Path file, ByteBuffer map, boolean truncated) {
+        this.file = file;
+        this.map = map;
+        this.truncated = truncated;
+        this.limit = map.limit();
+    }
+
+    static History open(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long length = Math.min(size, Integer.MAX_VALUE);
+            return new History(file, channel.map(FileChannel.MapMode.READ_ONLY, size - length, length), length < size);
+        }
+        catch (IOException e) {
+            return new History(file, ByteBuffer.allocate(0), false);
+        }
+    }
+
+    void add(String line) {
+        synchronized (this) {
+            if (line.isBlank() || line.equals(get(0)))
+                return;
+            if (addedCount == added.length)
+                added = Arrays.copyOf(added, addedCount * 2);
+            added[addedCount++] = line;
+        }
+        ByteBuffer record = StandardCharsets.UTF_8.encode(line + "\n");
+        APPEND_LOCK.lock();
+        try {
+            if (appender == null)
+                appender = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            FileLock lock = appender.lock();
+            try {
+                while (record.hasRemaining())
+                    appender.write(record);
+            }
+            finally {
+                lock.release();
+            }
+        }
+        catch (IOException ignored) {
+        }
+        finally {
+            APPEND_LOCK.unlock();
+        }
+    }
+
+    // Closes the file lines are appended to.
+    @Override
+    public void close() {
+        APPEND_LOCK.lock();
+        try {
+            if (appender != null)
+                appender.close();
+        }
+        catch (IOException ignored) {
+        }
+        finally {
+            APPEND_LOCK.unlock();
+        }
+    }
+
+    // Returns the entry `back` steps into the past, or null past the oldest.
+    synchronized String get(int back) {
+        if (back < addedCount)
+            return added[addedCount - 1 - back];
+        int i = back - addedCount;
+        if (!ensureIndexed(i + 1))
+            return null;
+        byte[] bytes = new byte[ends[i] - starts[i]];
+        map.get(starts[i], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Age of the newest entry at least `from` steps back containing query,
+    // or -1. Mapped entries are matched on their raw bytes without decoding.
+    synchronized int search(String query, int from) {
+        for (int back = from; back < addedCount; back++) {
+            if (added[addedCount - 1 - back].contains(query))
+                return back;
+        }
+        byte[] needle = query.getBytes(StandardCharsets.UTF_8);
+        int[] bits = trigramBits(needle, 0, needle.length);
+        for (int i = Math.max(from - addedCount, 0); ensureIndexed(i + 1); i++) {
+            if (i % BLOCK == 0 || i == from - addedCount) {
+                int block = i / BLOCK;
+                ensureIndexed((block + 1) * BLOCK);
+                if (!mayContain(block, bits)) {
+                    i = (block + 1) * BLOCK - 1;
+                    continue;
+                }
+            }
+            if (contains(starts[i], ends[i], needle))
+                return addedCount + i;
+        }
+        return -1;
+    }
+
+    // Indexes the rest of the map on a background thread, a step at a time so
+    // the editor is never held up for long.
+    void indexInBackground() {
+        Thread.ofVirtual().name("history-index").start(this::indexAll);
+    }
+
+    private void indexAll() {
+        while (true) {
+            synchronized (this) {
+                if (!ensureIndexed(indexed + INDEX_STEP))
+                    return;
+            }
+        }
+    }
+
+    private boolean mayContain(int block, int[] bits) {
+        int base = block * BLOOM_LONGS;
+        for (int bit : bits) {
+            if ((blooms[base + (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void addToBloom(int block, int start, int end) {
+        int length = end - start;
+        if (length < 3)
+            return;
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        map.get(start, scratch, 0, length);
+        if (blooms.length < (block + 1) * BLOOM_LONGS)
+            blooms = Arrays.copyOf(blooms, Math.max((block + 1) * BLOOM_LONGS, blooms.length * 2));
+        int base = block * BLOOM_LONGS;
+        for (int p = 0; p + 2 < length; p++) {
+            int bit = trigramBit(scratch[p], scratch[p + 1], scratch[p + 2]);
+            blooms[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static int[] trigramBits(byte[] bytes, int start, int end) {
+        int n = Math.max(end - start - 2, 0);
+        int[] bits = new int[n];
+        for (int p = 0; p < n; p++)
+            bits[p] = trigramBit(bytes[start + p], bytes[start + p + 1], bytes[start + p + 2]);
+        return bits;
+    }
+
+    private static int trigramBit(byte a, byte b, byte c) {
+        int h = ((a & 0xff) << 16 | (b & 0xff) << 8 | (c & 0xff)) * 0x9E3779B1;
+        return h >>> (32 - 12);
+    }
+
+    private boolean contains(int start, int end, byte[] needle) {
+        int length = end - start;
+        if (length < needle.length)
+            return false;
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        map.get(start, scratch, 0, length);
+        byte first = needle[0];
+        int last = length - needle.length;
+        outer:
+        for (int p = 0; p <= last; p++) {
+            if (scratch[p] != first)
+                continue;
+            for (int k = 1; k < needle.length; k++) {
+                if (scratch[p + k] != needle[k])
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Indexes older mapped entries until `count` are known; false if the
+    // history has fewer than that.
+    private boolean ensureIndexed(int count) {
+        while (indexed < count) {
+            if (limit == 0)
+                return false;
+            int end = limit;
+            if (map.get(end - 1) == '\n')
+                end--;
+            int start = end;
+            while (start > 0 && map.get(start - 1) != '\n')
+                start--;
+            limit = start;
+            // A tail-only mapping may start mid-line; drop that fragment.
+            if (start == 0 && truncated)
+                return false;
+            if (start == end)
+                continue;
+            if (indexed == starts.length) {
+                starts = Arrays.copyOf(starts, indexed * 2);
+                ends = Arrays.copyOf(ends, indexed * 2);
+            }
+            starts[indexed] = start;
+            ends[indexed] = end;
+            addToBloom(indexed / BLOCK, start, end);
+            indexed++;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// The standard streams of one command with its redirections applied.
+// Builtins write to these rather than to System.out/System.err, so builtins
+// on several threads (pipeline stages) never see each other's redirections.
+// Files are written through a buffered FileChannel that is flushed once when
+// the command finishes; ">>" targets share the buffered channels cached by
+// AppendHandles, which outlive the command. A file on stdin is read through
+// a FileChannel too, which builtins can also take whole (inChannel).
+final class IoContext implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+
+    // Where fd 1 or fd 2 points: the command's inherited stdout or stderr,
+    // or a file. Dups share the Target they copy, so identity is what counts.
+    // fd 0 points at a file, or at data (a here-string or here-document).
+    static final class Target {
+        final String name;
+        final Path file;
+        final boolean append;
+        final byte[] data;
+
+        private Target(String name, Path file, boolean append, byte[] data) {
+            this.name = name;
+            this.file = file;
+            this.append = append;
+            this.data = data;
+        }
+    }
+
+    static final Target STDOUT = new Target("stdout", null, false, null);
+    static final Target STDERR = new Target("stderr", null, false, null);
+    // The strerror text of EPIPE, which is all the JDK keeps of it.
+    private static final String BROKEN_PIPE = "Broken pipe";
+    private static final FileChannel STDOUT_CHANNEL = new FileOutputStream(FileDescriptor.out).getChannel();
+
+    final InputStream in;
+    final PrintStream out;
+    final PrintStream err;
+    private final List<Closeable> opened;
+    // The file behind each stream this context opened.
+    private final Map<PrintStream, FileChannel> channels;
+    // The file redirected to stdin, or null.
+    private final FileChannel inChannel;
+
+    private IoContext(InputStream in, PrintStream out, PrintStream err, List<Closeable> opened,
+                      Map<PrintStream, FileChannel> channels, FileChannel inChannel) {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+        this.opened = opened;
+        this.channels = channels;
+        this.inChannel = inChannel;
+    }
+
+    // Applies the redirections left to right, so ">f 2>&1" sends both
+    // streams to f while "2>&1 >f" leaves stderr on the old stdout. Relative
+    // file names are resolved against dir. Index 0 is stdin, null unless
+    // redirected; 1 is stdout, 2 is stderr.
+    static Target[] resolve(List<Redirection> redirects, Path dir) {
+        Target[] fds = { null, STDOUT, STDERR };
+        for (Redirection redirect : redirects) {
+            if (redirect.kind() == Redirection.Kind.DUP)
+                fds[redirect.fd()] = fds[Integer.parseInt(redirect.target())];
+            else if (redirect.kind() == Redirection.Kind.HERE)
+                fds[0] = new Target("here-document", null, false, redirect.target().getBytes());
+            else
+                fds[redirect.fd()] = new Target(redirect.target(), dir.resolve(redirect.target()),
+                        redirect.kind() == Redirection.Kind.APPEND, null);
+        }
+        return fds;
+    }
+
+    // Opens the context for a builtin; in, out and err are what stdin,
+    // STDOUT and STDERR stand for. A file that cannot be opened fails the
+    // whole context with an IOException whose message is ready to print.
+    static IoContext open(Target[] fds, InputStream in, PrintStream out, PrintStream err) throws IOException {
+        List<Closeable> opened = new ArrayList<>(3);
+        Map<PrintStream, FileChannel> channels = new IdentityHashMap<>(2);
+        FileChannel inChannel = null;
+        if (fds[0] != null && fds[0].data != null)
+            in = new ByteArrayInputStream(fds[0].data);
+        else if (fds[0] != null) {
+            inChannel = openInput(fds[0]);
+            opened.add(inChannel);
+            in = Channels.newInputStream(inChannel);
+            if (!Files.isRegularFile(fds[0].file))
+                inChannel = null;
+        }
+        PrintStream fd1 = stream(fds[1], out, err, opened, opened, channels);
+        PrintStream fd2 = fds[2] == fds[1] ? fd1 : stream(fds[2], out, err, opened, opened, channels);
+        return new IoContext(in, fd1, fd2, opened, channels, inChannel);
+    }
+
+    // Checks that the files redirected to can be opened, since a child
+    // handed one that cannot (Redirect.from, to or appendTo) would only fail
+    // to start. A file written to is created, as the redirection would
+    // create it anyway, but not yet truncated.
+    static void check(Target[] fds) throws IOException {
+        if (fds[0] != null && fds[0].file != null)
+            openInput(fds[0]).close();
+        for (int fd = 1; fd <= 2; fd++) {
+            Target target = fds[fd];
+            if (target.file == null)
+                continue;
+            try {
+                FileChannel.open(target.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE).close();
+            }
+            catch (IOException e) {
+                throw new IOException(target.name + ": " + reason(e), e);
+            }
+        }
+    }
+
+    private static FileChannel openInput(Target target) throws IOException {
+        if (Files.isDirectory(target.file))
+            throw new IOException(target.name + ": Is a directory");
+        try {
+            return FileChannel.open(target.file, StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            throw new IOException(target.name + ": " + reason(e), e);
+        }
+    }
+
+    // The regular file redirected to stdin ("< f"), for reading it whole
+    // with transferTo or a mapping, or null when stdin is anything else.
+    FileChannel inChannel() {
+        return inChannel;
+    }
+
+    // A channel onto wherever out writes, for transferTo: the file behind a
+    // redirection, the shell's own stdout descriptor, or failing those a
+    // wrapper around out that reports a failed write, which PrintStream
+    // would swallow. Whatever out has buffered is flushed first.
+    WritableByteChannel outChannel() {
+        out.flush();
+        FileChannel channel = channels.get(out);
+        if (channel != null)
+            return channel;
+        if (OutputPump.isStdout(out))
+            return STDOUT_CHANNEL;
+        return new PrintStreamChannel(out);
+    }
+
+    // Whether e is a write to a pipe whose reader has gone (EPIPE), which a
+    // writer should take as the end of its work rather than report.
+    static boolean isBrokenPipe(IOException e) {
+        return BROKEN_PIPE.equals(e.getMessage());
+    }
+
+    // Points a child's stdout and stderr at fds[1] and fds[2]. A null out
+    // means STDOUT is the pipe to the next pipeline stage: stdout is left to
+    // startPipeline, and a stderr sent there is piped for the caller to feed
+    // onwards. When both fds name the same target, stderr is merged into
+    // stdout as the child writes. A file on stdin (fds[0]) is handed to the
+    // child to read itself; data is piped in by pump().
+    static void redirect(ProcessBuilder pb, Target[] fds, PrintStream out, PrintStream err) {
+        AppendHandles.flushAll();
+        if (fds[0] != null)
+            pb.redirectInput(fds[0].file != null ? ProcessBuilder.Redirect.from(fds[0].file.toFile()) : ProcessBuilder.Redirect.PIPE);
+        if (fds[1].file != null)
+            pb.redirectOutput(fileRedirect(fds[1]));
+        else if (fds[1] == STDERR || out != null)
+            OutputPump.redirectOutput(pb, sink(fds[1], out, err));
+        if (fds[2] == fds[1])
+            pb.redirectErrorStream(true);
+        else if (fds[2].file != null)
+            pb.redirectError(fileRedirect(fds[2]));
+        else if (fds[2] == STDOUT && out == null)
+            pb.redirectError(ProcessBuilder.Redirect.PIPE);
+        else
+            OutputPump.redirectError(pb, sink(fds[2], out, err));
+    }
+
+    // Starts pumps for whichever of the child's streams redirect() left as
+    // pipes to the shell's streams, and one writing a here-string or
+    // here-document to its stdin, and returns them.
+    static List<CompletableFuture<Long>> pump(Process p, ProcessBuilder pb, Target[] fds, PrintStream out, PrintStream err) {
+        List<CompletableFuture<Long>> pumps = new ArrayList<>(3);
+        if (fds[0] != null && fds[0].data != null)
+            pumps.add(OutputPump.feed(new ByteArrayInputStream(fds[0].data), p.getOutputStream()));
+        if (fds[1].file == null && (fds[1] == STDERR || out != null))
+            pumps.add(OutputPump.start(pb.redirectOutput(), p.getInputStream(), sink(fds[1], out, err)));
+        if (!pb.redirectErrorStream() && fds[2].file == null && (fds[2] != STDOUT || out != null))
+            pumps.add(OutputPump.start(pb.redirectError(), p.getErrorStream(), sink(fds[2], out, err)));
+        pumps.removeIf(Objects::isNull);
+        return pumps;
+    }
+
+    private static PrintStream sink(Target target, PrintStream out, PrintStream err) {
+        return target == STDOUT && out != null ? out : err;
+    }
+
+    private static ProcessBuilder.Redirect fileRedirect(Target target) {
+        File file = target.file.toFile();
+        return target.append ? ProcessBuilder.Redirect.appendTo(file) : ProcessBuilder.Redirect.to(file);
+    }
+
+    // Flushes everything written and gives back the files this context
+    // opened. The inherited streams are left open.
+    @Override
+    public void close() {
+        closeAll(opened);
+    }
+
+    private static void closeAll(List<Closeable> opened) {
+        for (Closeable closeable : opened) {
+            try {
+                closeable.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static PrintStream stream(Target target, PrintStream out, PrintStream err,
+                                      List<Closeable> cleanup, List<Closeable> opened,
+                                      Map<PrintStream, FileChannel> channels) throws IOException {
+        if (target == STDOUT)
+            return out;
+        if (target == STDERR)
+            return err;
+        try {
+            if (target.append) {
+                PrintStream stream = AppendHandles.acquire(target.file);
+                opened.add(() -> AppendHandles.release(stream));
+                channels.put(stream, AppendHandles.channel(stream));
+                return stream;
+            }
+            AppendHandles.flush(target.file);
+            FileChannel channel = FileChannel.open(target.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            PrintStream stream = new PrintStream(new BufferedOutputStream(new ChannelOutput(channel), BUFFER_SIZE), false);
+            opened.add(stream);
+            channels.put(stream, channel);
+            return stream;
+        }
+        catch (IOException e) {
+            if (cleanup != null)
+                closeAll(cleanup);
+            throw new IOException(target.name + ": " + reason(e), e);
+        }
+    }
+
+    // The strerror-style text other shells and coreutils print for e.
+    static String reason(IOException e) {
+        if (e instanceof NoSuchFileException)
+            return "No such file or directory";
+        if (e instanceof AccessDeniedException)
+            return "Permission denied";
+        if (e instanceof FileSystemException fse && fse.getReason() != null)
+            return fse.getReason();
+        // ProcessBuilder.start: "Cannot run program "x": error=13, Permission denied".
+        String message = e.getMessage();
+        int errno = message != null ? message.indexOf("error=") : -1;
+        if (errno >= 0 && message.indexOf(", ", errno) >= 0)
+            return message.substring(message.indexOf(", ", errno) + 2);
+        return message;
+    }
+
+    // Writes to a PrintStream as a channel. A PrintStream notes a failed
+    // write (a pipe to a stage that has exited) and carries on; here it
+    // fails the write instead, as the descriptor itself would with EPIPE.
+    private static final class PrintStreamChannel implements WritableByteChannel {
+        private final PrintStream out;
+        private byte[] chunk = new byte[BUFFER_SIZE];
+        private boolean open = true;
+
+        PrintStreamChannel(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            if (src.hasArray()) {
+                out.write(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.limit());
+            }
+            else {
+                if (chunk.length < n)
+                    chunk = new byte[Math.max(n, BUFFER_SIZE)];
+                src.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+            if (out.checkError())
+                throw new IOException(BROKEN_PIPE);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    // Plain writes to a channel, under the buffers here and in AppendHandles.
+    static final class ChannelOutput extends OutputStream {
+        private final FileChannel channel;
+
+        ChannelOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
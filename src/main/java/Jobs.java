@@ -0,0 +1,141 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Background jobs started with '&'. A job's status is a future completed
+// from Process.onExit (see Pipeline.start), and an and-or list such as
+// "a && b &" moves on to its next pipeline from that completion, so no
+// thread is parked waiting for a background job. Finished jobs stay in the
+// table until they are reported at the next prompt, listed by "jobs", or
+// collected by "fg" or "wait".
+final class Jobs {
+    static final class Job {
+        final int id;
+        final String command;
+        final long pid;
+        final CompletableFuture<Integer> status;
+
+        Job(int id, String command, long pid, CompletableFuture<Integer> status) {
+            this.id = id;
+            this.command = command;
+            this.pid = pid;
+            this.status = status;
+        }
+    }
+
+    private final Session session;
+    private final TreeMap<Integer, Job> table = new TreeMap<>();
+
+    Jobs(Session session) {
+        this.session = session;
+    }
+
+    // Starts pipelines from..to of sequence (one and-or list) as a job, in
+    // a subshell of its own: "cd dir && make &" changes directory for make
+    // but not for the shell.
+    Job start(Sequence sequence, int from, int to, String command) throws IOException {
+        Session subshell = session.subshell(session.in, session.out);
+        Pipeline.Running first = sequence.pipelines.get(from).start(subshell, true);
+        CompletableFuture<Integer> status = first.status().thenCompose(s -> continueList(subshell, sequence, from + 1, to, s));
+        long pid = first.pid() != 0 ? first.pid() : ProcessHandle.current().pid();
+        synchronized (this) {
+            int id = table.isEmpty() ? 1 : table.lastKey() + 1;
+            Job job = new Job(id, command, pid, status);
+            table.put(id, job);
+            return job;
+        }
+    }
+
+    private static CompletableFuture<Integer> continueList(Session subshell, Sequence sequence, int next, int to, int status) {
+        for (int i = next; i <= to; i++) {
+            Sequence.Connector connector = sequence.connectors.get(i);
+            if ((connector == Sequence.Connector.AND && status != 0) ||
+                (connector == Sequence.Connector.OR && status == 0))
+                continue;
+            int index = i;
+            try {
+                return sequence.pipelines.get(i).start(subshell, true).status()
+                        .thenCompose(s -> continueList(subshell, sequence, index + 1, to, s));
+            }
+            catch (IOException e) {
+                subshell.err.println(e.getMessage());
+                return CompletableFuture.completedFuture(126);
+            }
+        }
+        return CompletableFuture.completedFuture(status);
+    }
+
+    // Resolves "%n", "%%", "%+", "%-" or a pid; null or "" means the
+    // current job.
+    synchronized Job find(String spec) {
+        if (spec == null || spec.isEmpty() || spec.equals("%%") || spec.equals("%+"))
+            return table.isEmpty() ? null : table.lastEntry().getValue();
+        if (spec.equals("%-")) {
+            Map.Entry<Integer, Job> current = table.lastEntry();
+            Map.Entry<Integer, Job> previous = current == null ? null : table.lowerEntry(current.getKey());
+            return previous == null ? null : previous.getValue();
+        }
+        try {
+            if (spec.startsWith("%"))
+                return table.get(Integer.parseInt(spec.substring(1)));
+            long pid = Long.parseLong(spec);
+            for (Job job : table.values()) {
+                if (job.pid == pid)
+                    return job;
+            }
+        }
+        catch (NumberFormatException ignored) {
+        }
+        return null;
+    }
+
+    synchronized void remove(Job job) {
+        table.remove(job.id, job);
+    }
+
+    synchronized List<Job> all() {
+        return new ArrayList<>(table.values());
+    }
+
+    // Kills the processes of the jobs still running (the last of each
+    // pipeline, and whatever it started).
+    synchronized void hangup() {
+        for (Job job : table.values()) {
+            if (job.status.isDone() || job.pid == ProcessHandle.current().pid())
+                continue;
+            ProcessHandle.of(job.pid).ifPresent(p -> {
+                p.descendants().forEach(ProcessHandle::destroy);
+                p.destroy();
+            });
+        }
+    }
+
+    // Prints "[n] pid" for a job that has just been started.
+    static void announce(Job job, PrintStream out) {
+        out.printf("[%d] %d%n", job.id, job.pid);
+    }
+
+    // Prints every job, or only the finished ones, and forgets those that
+    // have finished.
+    synchronized void report(PrintStream out, boolean finishedOnly) {
+        Integer current = table.isEmpty() ? null : table.lastKey();
+        Integer previous = current == null ? null : table.lowerKey(current);
+        for (Iterator<Job> it = table.values().iterator(); it.hasNext(); ) {
+            Job job = it.next();
+            boolean finished = job.status.isDone();
+            if (finishedOnly && !finished)
+                continue;
+            char mark = Objects.equals(job.id, current) ? '+' : Objects.equals(job.id, previous) ? '-' : ' ';
+            String state;
+            if (!finished)
+                state = "Running";
+            else {
+                int status = job.status.join();
+                state = status == 0 ? "Done" : "Exit " + status;
+            }
+            out.printf("[%d]%c  %-24s%s%s%n", job.id, mark, state, job.command, finished ? "" : " &");
+            if (finished)
+                it.remove();
+        }
+    }
+}
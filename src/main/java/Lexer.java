@@ -0,0 +1,360 @@
+import java.util.*;
+
+// Splits a command line into words and operators in a single pass. The word
+// buffer is reused across tokens, so each word costs one String and quoted
+// fragments glued to their neighbours ('a'"b"c) are joined in place.
+//
+// Quoting follows the shell's existing rules: single quotes are literal;
+// inside double quotes a backslash only escapes \ $ " and newline; outside
+// quotes a backslash escapes any character.
+//
+// A command substitution, $(...) or `...`, is cut out of the word it is in
+// and kept as a Command.Substitution at its offset in the word's text; it is
+// run when the command is (Command.expand). The closing ')' is the one that
+// balances the '(' with quotes, escapes and nested substitutions skipped.
+final class Lexer {
+    static final int END = 0;
+    static final int WORD = 1;
+    static final int IO_NUMBER = 2;
+    static final int PIPE = 3;
+    static final int AND_IF = 4;
+    static final int OR_IF = 5;
+    static final int SEMI = 6;
+    static final int GREAT = 7;
+    static final int DGREAT = 8;
+    static final int GREATAND = 9;
+    static final int AND_GREAT = 10;
+    static final int AND_DGREAT = 11;
+    static final int AMP = 12;
+    static final int LESS = 13;
+    static final int DLESS = 14;
+    static final int DLESSDASH = 15;
+    static final int TLESS = 16;
+
+    private CharSequence input;
+    private int pos;
+    private int start;
+    private final StringBuilder word = new StringBuilder();
+    private String text;
+    private boolean quoted;
+    // Unquoted '*', '?' or '[' in the last WORD, and the [start, end) spans
+    // of it that were quoted or escaped, for pattern().
+    private boolean glob;
+    private int[] quotedSpans = new int[8];
+    private int quotedCount;
+    private final List<Command.Substitution> substitutions = new ArrayList<>();
+
+    void reset(CharSequence input) {
+        this.input = input;
+        pos = 0;
+        text = null;
+    }
+
+    // Text of the last WORD or IO_NUMBER token.
+    String text() {
+        return text;
+    }
+
+    // Whether any of the last WORD was quoted or escaped, which keeps it
+    // from being read as a keyword.
+    boolean quoted() {
+        return quoted;
+    }
+
+    // The command substitutions in the last WORD, in order, or null if it
+    // has none.
+    Command.Substitution[] substitutions() {
+        return substitutions.isEmpty() ? null : substitutions.toArray(new Command.Substitution[0]);
+    }
+
+    // The last WORD as a glob pattern, with a backslash before each quoted
+    // character that would otherwise be special, or null if it has no
+    // unquoted '*', '?' or '['. Words with substitutions are not globbed.
+    String pattern() {
+        if (!glob || !substitutions.isEmpty())
+            return null;
+        StringBuilder pattern = new StringBuilder(text.length() + 8);
+        int span = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            while (span < quotedCount && quotedSpans[2 * span + 1] <= i)
+                span++;
+            boolean literal = span < quotedCount && quotedSpans[2 * span] <= i;
+            if (literal && (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\'))
+                pattern.append('\\');
+            pattern.append(c);
+        }
+        return pattern.toString();
+    }
+
+    // Offset in the input where the last token began.
+    int start() {
+        return start;
+    }
+
+    int next() {
+        int n = input.length();
+        while (pos < n && Character.isWhitespace(input.charAt(pos)))
+            pos++;
+        text = null;
+        start = pos;
+        if (pos >= n)
+            return END;
+        char c = input.charAt(pos);
+        switch (c) {
+            case '|':
+                pos++;
+                if (pos < n && input.charAt(pos) == '|') {
+                    pos++;
+                    return OR_IF;
+                }
+                return PIPE;
+            case '&':
+                if (pos + 1 < n && input.charAt(pos + 1) == '&') {
+                    pos += 2;
+                    return AND_IF;
+                }
+                if (pos + 1 < n && input.charAt(pos + 1) == '>') {
+                    pos += 2;
+                    if (pos < n && input.charAt(pos) == '>') {
+                        pos++;
+                        return AND_DGREAT;
+                    }
+                    return AND_GREAT;
+                }
+                pos++;
+                return AMP;
+            case ';':
+                pos++;
+                return SEMI;
+            case '>':
+                return redirect();
+            case '<':
+                return inputRedirect();
+        }
+        return word();
+    }
+
+    // "<", "<<", "<<-" or "<<<".
+    private int inputRedirect() {
+        int n = input.length();
+        pos++;
+        if (pos >= n || input.charAt(pos) != '<')
+            return LESS;
+        pos++;
+        if (pos < n && input.charAt(pos) == '<') {
+            pos++;
+            return TLESS;
+        }
+        if (pos < n && input.charAt(pos) == '-') {
+            pos++;
+            return DLESSDASH;
+        }
+        return DLESS;
+    }
+
+    private int redirect() {
+        pos++;
+        if (pos < input.length() && input.charAt(pos) == '>') {
+            pos++;
+            return DGREAT;
+        }
+        if (pos < input.length() && input.charAt(pos) == '&') {
+            pos++;
+            return GREATAND;
+        }
+        return GREAT;
+    }
+
+    private int word() {
+        int n = input.length();
+        word.setLength(0);
+        quoted = false;
+        glob = false;
+        quotedCount = 0;
+        substitutions.clear();
+        while (pos < n) {
+            char c = input.charAt(pos);
+            if (Character.isWhitespace(c) || isOperatorStart(c))
+                break;
+            int from = word.length();
+            if (c == '\'') {
+                quoted = true;
+                pos++;
+                int close = indexOf('\'', pos);
+                word.append(input, pos, close);
+                pos = Math.min(close + 1, n);
+                quotedSpan(from);
+            }
+            else if (c == '"') {
+                quoted = true;
+                pos++;
+                doubleQuoted();
+                quotedSpan(from);
+            }
+            else if (c == '\\') {
+                quoted = true;
+                pos++;
+                if (pos < n)
+                    word.append(input.charAt(pos++));
+                else
+                    word.append('\\');
+                quotedSpan(from);
+            }
+            else if (c == '$' && pos + 1 < n && input.charAt(pos + 1) == '(' || c == '`')
+                substitution(false);
+            else {
+                if (c == '*' || c == '?' || c == '[')
+                    glob = true;
+                word.append(c);
+                pos++;
+            }
+        }
+        text = word.toString();
+        if (!quoted && pos < n && (input.charAt(pos) == '>' || input.charAt(pos) == '<') && isDigits(text))
+            return IO_NUMBER;
+        return WORD;
+    }
+
+    private void quotedSpan(int from) {
+        if (2 * quotedCount + 2 > quotedSpans.length)
+            quotedSpans = Arrays.copyOf(quotedSpans, quotedSpans.length * 2);
+        quotedSpans[2 * quotedCount] = from;
+        quotedSpans[2 * quotedCount + 1] = word.length();
+        quotedCount++;
+    }
+
+    private void doubleQuoted() {
+        int n = input.length();
+        while (pos < n) {
+            char c = input.charAt(pos);
+            if (c == '"') {
+                pos++;
+                return;
+            }
+            if (c == '\\' && pos + 1 < n) {
+                char next = input.charAt(pos + 1);
+                if (next == '\\' || next == '$' || next == '"' || next == '\n') {
+                    word.append(next);
+                    pos += 2;
+                    continue;
+                }
+            }
+            if (c == '$' && pos + 1 < n && input.charAt(pos + 1) == '(' || c == '`') {
+                substitution(true);
+                continue;
+            }
+            word.append(c);
+            pos++;
+        }
+    }
+
+    // Takes the $(...) or `...` at pos as a substitution at the end of the
+    // word so far. Inside backquotes a backslash escapes \ ` and $ only.
+    private void substitution(boolean inDoubleQuotes) {
+        // Never a keyword or an IO_NUMBER.
+        quoted = true;
+        String command;
+        if (input.charAt(pos) == '$') {
+            int close = closingParen(pos + 2);
+            command = input.subSequence(pos + 2, close).toString();
+            pos = close + 1;
+        }
+        else {
+            int close = closingBackquote(pos + 1);
+            StringBuilder text = new StringBuilder(close - pos);
+            for (int i = pos + 1; i < close; i++) {
+                char c = input.charAt(i);
+                if (c == '\\' && i + 1 < close && "\\`$".indexOf(input.charAt(i + 1)) >= 0)
+                    c = input.charAt(++i);
+                text.append(c);
+            }
+            command = text.toString();
+            pos = close + 1;
+        }
+        substitutions.add(new Command.Substitution(word.length(), command, inDoubleQuotes));
+    }
+
+    // The index of the ')' closing a "$(" whose text starts at from.
+    private int closingParen(int from) {
+        int n = input.length();
+        int depth = 1;
+        for (int i = from; i < n; i++) {
+            switch (input.charAt(i)) {
+                case '\\':
+                    i++;
+                    break;
+                case '\'':
+                    i = indexOf('\'', i + 1);
+                    break;
+                case '"':
+                    i = closingDoubleQuote(i + 1);
+                    break;
+                case '`':
+                    i = closingBackquote(i + 1);
+                    break;
+                case '(':
+                    depth++;
+                    break;
+                case ')':
+                    if (--depth == 0)
+                        return i;
+                    break;
+            }
+        }
+        throw new Parser.SyntaxException("unexpected EOF while looking for matching `)'");
+    }
+
+    private int closingDoubleQuote(int from) {
+        int n = input.length();
+        for (int i = from; i < n; i++) {
+            char c = input.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '"')
+                return i;
+            else if (c == '$' && i + 1 < n && input.charAt(i + 1) == '(')
+                i = closingParen(i + 2);
+            else if (c == '`')
+                i = closingBackquote(i + 1);
+        }
+        throw new Parser.SyntaxException("unexpected EOF while looking for matching `\"'");
+    }
+
+    private int closingBackquote(int from) {
+        int n = input.length();
+        for (int i = from; i < n; i++) {
+            char c = input.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '`')
+                return i;
+        }
+        throw new Parser.SyntaxException("unexpected EOF while looking for matching ``'");
+    }
+
+    private int indexOf(char c, int from) {
+        int n = input.length();
+        for (int i = from; i < n; i++) {
+            if (input.charAt(i) == c)
+                return i;
+        }
+        return n;
+    }
+
+    private boolean isOperatorStart(char c) {
+        return c == '|' || c == ';' || c == '>' || c == '<' || c == '&';
+    }
+
+    // Whether s is a non-empty run of ASCII digits, as an IO_NUMBER or the
+    // descriptor after >& is.
+    static boolean isDigits(String s) {
+        if (s.isEmpty())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9')
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+// Interactive line input for a terminal in non-canonical, no-echo mode.
+// Reads block on the tty, escape sequences for the cursor keys are decoded,
+// and every edit is redrawn from the first changed column only. Output for
+// all bytes of one read is collected in a frame and flushed once. Up/Down
+// walk the history and Ctrl-R starts a reverse incremental search.
+final class LineEditor {
+    private static final char ESC = 0x1b;
+
+    private final InputStream in;
+    private final PrintStream out;
+    private final byte[] buf = new byte[4096];
+    private int pos;
+    private int len;
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder frame = new StringBuilder();
+    private int cursor;
+    private int tabCount;
+    private final History history;
+    // The directory file names are completed in, and the PATH commands are.
+    private final Supplier<Path> currentDir;
+    private final Supplier<String> pathEnv;
+    private String prompt;
+    // How far back the line shown is in the history; -1 for the line being typed.
+    private int historyPos;
+    private String editedLine;
+
+    LineEditor(InputStream in, PrintStream out, History history, Supplier<Path> currentDir, Supplier<String> pathEnv) {
+        this.in = in;
+        this.out = out;
+        this.history = history;
+        this.currentDir = currentDir;
+        this.pathEnv = pathEnv;
+    }
+
+    // Returns the entered line, or null at end of input. The line goes into
+    // the history.
+    String readLine(String prompt) throws IOException {
+        return read(prompt, true);
+    }
+
+    // A line continuing the command just read, such as here-document body,
+    // which is not a command of its own and so stays out of the history.
+    String readContinuation(String prompt) throws IOException {
+        return read(prompt, false);
+    }
+
+    private String read(String prompt, boolean record) throws IOException {
+        this.prompt = prompt;
+        line.setLength(0);
+        cursor = 0;
+        tabCount = 0;
+        historyPos = -1;
+        while (true) {
+            int key = next();
+            if (key < 0) {
+                flush();
+                return null;
+            }
+            if (key == '\t') {
+                complete();
+                continue;
+            }
+            tabCount = 0;
+            if (key == 0x12 && reverseSearch())
+                key = '\n';
+            switch (key) {
+                case '\n':
+                case '\r':
+                    moveTo(line.length());
+                    frame.append('\n');
+                    flush();
+                    if (record)
+                        history.add(line.toString());
+                    return line.toString();
+                case 0x04:
+                    if (line.length() == 0) {
+                        flush();
+                        return null;
+                    }
+                    delete(cursor);
+                    break;
+                case 0x7f:
+                case '\b':
+                    if (cursor > 0)
+                        delete(cursor - 1);
+                    break;
+                case ESC:
+                    escape();
+                    break;
+                default:
+                    if (key >= 0x20)
+                        insert(key);
+            }
+        }
+    }
+
+    private int next() throws IOException {
+        int b = nextByte();
+        if (b < 0x80)
+            return b;
+        int extra = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : 0;
+        int codePoint = b & (0x3f >> extra);
+        for (int i = 0; i < extra; i++)
+            codePoint = (codePoint << 6) | (nextByte() & 0x3f);
+        return codePoint;
+    }
+
+    private int nextByte() throws IOException {
+        if (pos == len) {
+            flush();
+            len = in.read(buf);
+            pos = 0;
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    // Decodes CSI ("ESC [") and SS3 ("ESC O") sequences for the editing keys.
+    private void escape() throws IOException {
+        int kind = nextByte();
+        if (kind != '[' && kind != 'O')
+            return;
+        int param = 0;
+        int b = nextByte();
+        while (b >= '0' && b <= '9' || b == ';') {
+            if (b != ';')
+                param = param * 10 + (b - '0');
+            b = nextByte();
+        }
+        switch (b) {
+            case 'A':
+                showHistory(historyPos + 1);
+                break;
+            case 'B':
+                showHistory(historyPos - 1);
+                break;
+            case 'C':
+                moveTo(Math.min(cursor + 1, line.length()));
+                break;
+            case 'D':
+                moveTo(Math.max(cursor - 1, 0));
+                break;
+            case 'H':
+                moveTo(0);
+                break;
+            case 'F':
+                moveTo(line.length());
+                break;
+            case '~':
+                if (param == 1 || param == 7)
+                    moveTo(0);
+                else if (param == 4 || param == 8)
+                    moveTo(line.length());
+                else if (param == 3 && cursor < line.length())
+                    delete(cursor);
+                break;
+        }
+    }
+
+    private void insert(int codePoint) {
+        String s = new String(Character.toChars(codePoint));
+        String updated = new StringBuilder(line).insert(cursor, s).toString();
+        replace(updated, cursor + s.length());
+    }
+
+    private void delete(int at) {
+        String updated = new StringBuilder(line).deleteCharAt(at).toString();
+        replace(updated, at);
+    }
+
+    private void showHistory(int pos) {
+        if (pos < -1)
+            return;
+        String entry = pos == -1 ? editedLine : history.get(pos);
+        if (entry == null) {
+            frame.append('\007');
+            return;
+        }
+        if (historyPos == -1)
+            editedLine = line.toString();
+        historyPos = pos;
+        replace(entry, entry.length());
+    }
+
+    // Runs the "(reverse-i-search)" sub-mode. Typing extends the query and
+    // resumes from the current match, since no newer entry can match a longer
+    // query, and once a query has failed its extensions are not searched at
+    // all; Ctrl-R steps to an older match. Returns true when Enter should run
+    // the match right away.
+    private boolean reverseSearch() throws IOException {
+        StringBuilder query = new StringBuilder();
+        String original = line.toString();
+        int match = -1;
+        boolean failing = false;
+        drawSearch(query, match);
+        while (true) {
+            int key = next();
+            if (key == 0x12 || key >= 0x20 && key != 0x7f) {
+                int from = match < 0 ? 0 : match;
+                if (key == 0x12)
+                    from = match + 1;
+                else
+                    query.appendCodePoint(key);
+                int found = query.length() == 0 || (failing && key != 0x12) ? -1 : history.search(query.toString(), from);
+                if (found >= 0)
+                    match = found;
+                else if (query.length() > 0) {
+                    failing = key != 0x12;
+                    frame.append('\007');
+                }
+            }
+            else if (key == 0x7f || key == '\b') {
+                if (query.length() > 0)
+                    query.setLength(query.offsetByCodePoints(query.length(), -1));
+                match = query.length() == 0 ? -1 : history.search(query.toString(), 0);
+                failing = query.length() > 0 && match < 0;
+            }
+            else {
+                String result = key == 0x07 || match < 0 ? original : history.get(match);
+                frame.append('\r').append(prompt).append(result).append(ESC).append("[K");
+                line.setLength(0);
+                line.append(result);
+                cursor = line.length();
+                historyPos = -1;
+                if (key == ESC)
+                    escape();
+                return key == '\n' || key == '\r';
+            }
+            drawSearch(query, match);
+        }
+    }
+
+    private void drawSearch(CharSequence query, int match) {
+        frame.append('\r').append("(reverse-i-search)`").append(query).append("': ");
+        if (match >= 0)
+            frame.append(history.get(match));
+        frame.append(ESC).append("[K");
+    }
+
+    private void complete() {
+        tabCount++;
+        String current = line.substring(0, cursor);
+        String rest = line.substring(cursor);
+        int wordStart = current.lastIndexOf(' ') + 1;
+        boolean firstWord = current.substring(0, wordStart).isBlank();
+        String head = firstWord ? "" : current.substring(0, wordStart);
+        String word = firstWord ? current.trim() : current.substring(wordStart);
+        CompletionIndex index = Main.completionIndex(pathEnv.get());
+        List<String> matches = firstWord ? index.commandMatches(word) : index.fileMatches(currentDir.get(), word);
+        if (matches.isEmpty()) {
+            frame.append('\007');
+            return;
+        }
+        if (matches.size() == 1) {
+            String match = matches.get(0);
+            String completed = head + match + (match.endsWith("/") ? "" : " ");
+            replace(completed + rest, completed.length());
+            tabCount = 0;
+            return;
+        }
+        String lcp = CompletionIndex.longestCommonPrefix(matches);
+        if (lcp.length() > word.length()) {
+            replace(head + lcp + rest, head.length() + lcp.length());
+            tabCount = 0;
+        }
+        else if (tabCount == 1)
+            frame.append('\007');
+        else {
+            int saved = cursor;
+            moveTo(line.length());
+            frame.append('\n').append(String.join("  ", matches)).append('\n');
+            frame.append(prompt).append(line);
+            moveTo(saved);
+            tabCount = 0;
+        }
+    }
+
+    // Redraws only the columns from the first difference onwards.
+    private void replace(String updated, int newCursor) {
+        int common = 0;
+        int max = Math.min(line.length(), updated.length());
+        while (common < max && line.charAt(common) == updated.charAt(common))
+            common++;
+        if (common == updated.length() && common == line.length()) {
+            moveTo(newCursor);
+            return;
+        }
+        moveTo(common);
+        frame.append(updated, common, updated.length());
+        if (updated.length() < line.length())
+            frame.append(ESC).append("[K");
+        line.setLength(0);
+        line.append(updated);
+        cursor = updated.length();
+        moveTo(newCursor);
+    }
+
+    private void moveTo(int target) {
+        if (target < cursor)
+            frame.append(ESC).append('[').append(cursor - target).append('D');
+        else if (target > cursor)
+            frame.append(ESC).append('[').append(target - cursor).append('C');
+        cursor = target;
+    }
+
+    private void flush() {
+        if (frame.length() == 0)
+            return;
+        out.append(frame);
+        out.flush();
+        frame.setLength(0);
+    }
+}
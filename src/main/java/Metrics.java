@@ -0,0 +1,161 @@
+import java.io.*;
+import java.util.*;
+import jdk.jfr.*;
+
+// Opt-in (set -o metrics) timing of the phases a command line goes through:
+// tokenizing and parsing it, resolving programs on PATH, starting the
+// processes, waiting for them, draining their piped output, and running
+// builtins in-process. Every phase is added to a histogram for the "stats"
+// builtin and committed as a "shell.Phase" JFR event, which a recording
+// started with -XX:StartFlightRecording or "jcmd <pid> JFR.start" picks up.
+// With the option off begin() returns null and nothing is measured; the
+// JFR classes are not even loaded.
+//
+// Each Session has its own, shared with its subshells, so one daemon
+// session turning the option on leaves the others alone. The flag is set
+// on the session's thread and read on pump, builtin-stage and job threads.
+final class Metrics {
+    enum Phase {
+        TOKENIZE, RESOLVE, SPAWN, WAIT, DRAIN, BUILTIN;
+
+        final String label = name().toLowerCase();
+    }
+
+    @Name("shell.Phase")
+    @Label("Shell Phase")
+    @Category("Shell")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Command")
+        String command;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        transient long startNanos;
+    }
+
+    volatile boolean enabled;
+    private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+    Metrics() {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new Histogram();
+    }
+
+    PhaseEvent begin() {
+        if (!enabled)
+            return null;
+        PhaseEvent event = new PhaseEvent();
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    // Ends a phase from begin(); bytes is what it moved, if anything.
+    void end(PhaseEvent event, Phase phase, String command, long bytes) {
+        if (event == null)
+            return;
+        event.end();
+        histograms[phase.ordinal()].add(System.nanoTime() - event.startNanos, bytes);
+        if (event.shouldCommit()) {
+            event.phase = phase.label;
+            event.command = command;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    // The "stats" table: one row per phase seen so far. Returns false if
+    // there is nothing to show.
+    boolean print(PrintStream out) {
+        boolean header = false;
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = histograms[phase.ordinal()];
+            synchronized (histogram) {
+                if (histogram.count == 0)
+                    continue;
+                if (!header) {
+                    out.printf("%-10s %8s %10s %10s %10s %10s %12s%n", "phase", "count", "p50", "p99", "max", "total", "bytes");
+                    header = true;
+                }
+                out.printf("%-10s %8d %10s %10s %10s %10s %12d%n", phase.label, histogram.count,
+                        duration(histogram.percentile(0.50)), duration(histogram.percentile(0.99)),
+                        duration(histogram.max), duration(histogram.total), histogram.bytes);
+            }
+        }
+        return header;
+    }
+
+    void reset() {
+        for (Histogram histogram : histograms) {
+            synchronized (histogram) {
+                Arrays.fill(histogram.counts, 0);
+                histogram.count = 0;
+                histogram.total = 0;
+                histogram.max = 0;
+                histogram.bytes = 0;
+            }
+        }
+    }
+
+    private static String duration(long nanos) {
+        if (nanos < 1_000)
+            return nanos + " ns";
+        if (nanos < 1_000_000)
+            return String.format("%.1f us", nanos / 1e3);
+        if (nanos < 1_000_000_000)
+            return String.format("%.2f ms", nanos / 1e6);
+        return String.format("%.2f s", nanos / 1e9);
+    }
+
+    // Log-linear buckets, SUB_BUCKETS per power of two, so a percentile
+    // read back is within about 3% of a recorded value whatever its size.
+    private static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        final long[] counts = new long[64 * SUB_BUCKETS];
+        long count;
+        long total;
+        long max;
+        long bytes;
+
+        synchronized void add(long nanos, long moved) {
+            counts[bucket(Math.max(0, nanos))]++;
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+            bytes += moved;
+        }
+
+        // The middle of the bucket holding the value at quantile q.
+        long percentile(double q) {
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= rank)
+                    return Math.min(max, middle(b));
+            }
+            return max;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long middle(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long width = 1L << (exponent - SUB_BITS);
+            return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width / 2;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Moves a child's stdout/stderr to the shell's streams while it runs. When the
+// destination is the shell's own stdout/stderr the child simply inherits the
+// descriptor, so nothing is copied; otherwise a virtual thread drains the
+// pipe as data arrives, which keeps the child from blocking on a full pipe.
+final class OutputPump {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final PrintStream stdout = System.out;
+    private static final PrintStream stderr = System.err;
+
+    private OutputPump() {
+    }
+
+    static boolean isStdout(OutputStream target) {
+        return target == stdout;
+    }
+
+    // The child inherits fd 1 only when its stdout goes to the shell's own
+    // stdout; anything else, including the shell's stderr, is pumped.
+    static void redirectOutput(ProcessBuilder pb, PrintStream target) {
+        target.flush();
+        pb.redirectOutput(target == stdout ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.PIPE);
+    }
+
+    static void redirectError(ProcessBuilder pb, PrintStream target) {
+        target.flush();
+        pb.redirectError(target == stderr ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.PIPE);
+    }
+
+    // Returns null when the stream was not piped and there is nothing to
+    // pump; otherwise a future completed with the byte count once the pipe
+    // has been drained.
+    static CompletableFuture<Long> start(ProcessBuilder.Redirect redirect, InputStream in, OutputStream out) {
+        if (redirect != ProcessBuilder.Redirect.PIPE)
+            return null;
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        Thread.ofVirtual().name("pump").start(() -> {
+            long bytes = 0;
+            try {
+                bytes = pump(in, out);
+            }
+            finally {
+                done.complete(bytes);
+            }
+        });
+        return done;
+    }
+
+    // Copies in to out, a child's stdin, and closes out at the end so the
+    // child sees end of input.
+    static CompletableFuture<Long> feed(InputStream in, OutputStream out) {
+        CompletableFuture<Long> fed = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            long bytes = 0;
+            try (out) {
+                bytes = pump(in, out);
+            }
+            catch (IOException ignored) {
+            }
+            finally {
+                fed.complete(bytes);
+            }
+        });
+        return fed;
+    }
+
+    // Waits for the pumps and returns how many bytes they moved.
+    static long join(List<CompletableFuture<Long>> pumps) {
+        long bytes = 0;
+        for (CompletableFuture<Long> pump : pumps)
+            bytes += pump.join();
+        return bytes;
+    }
+
+    // Writes each chunk as soon as it is read and flushes whenever the pipe
+    // has momentarily run dry, so the first byte is never held back while
+    // bulk output is still written in large batches.
+    static long pump(InputStream in, OutputStream out) {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long bytes = 0;
+        try (in) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                bytes += n;
+                if (in.available() == 0)
+                    out.flush();
+            }
+            out.flush();
+        }
+        catch (IOException ignored) {
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,336 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// The "parallel" builtin, a subset of GNU parallel:
+//
+//   parallel [-j N] [-k] [--halt now|soon[,fail=1]] command [arg...] [::: input...]
+//
+// Each input (the words after ":::", or else the lines of stdin) is put in
+// place of "{}" in the command, or appended if there is no "{}", and run as
+// an external program. N workers (default: one per core) each keep one
+// process going, so inputs read from a pipe start running before the pipe
+// ends. A job's stdout and stderr are collected whole and written out when
+// it finishes, or with -k in input order, so jobs never interleave lines.
+// Collected output is held in memory up to a budget shared by the run and
+// spilled to temporary files past it, so a slow first job under -k cannot
+// make the shell hold everything the others print.
+//
+// By default every job runs whatever fails; "--halt soon" starts no new job
+// after a failure and "--halt now" also kills the running ones. The status
+// is the number of failed jobs (101 for more than 100), and failures are
+// summed up by exit code on stderr.
+final class Parallel {
+    private static final long MEMORY_BUDGET = 32L << 20;
+    private static final int MAX_STATUS = 101;
+
+    private enum Halt { NEVER, SOON, NOW }
+
+    // One input's run: its place in the input, and its output so far.
+    private static final class Job {
+        final long index;
+        final String input;
+        final Spool out;
+        final Spool err;
+        int status;
+
+        Job(long index, String input, Spool out, Spool err) {
+            this.index = index;
+            this.input = input;
+            this.out = out;
+            this.err = err;
+        }
+    }
+
+    private final String[] template;
+    private final boolean keepOrder;
+    private final Halt halt;
+    private final Iterator<String> inputs;
+    private final IoContext io;
+    private final Session session;
+    private final AtomicLong memory = new AtomicLong(MEMORY_BUDGET);
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+    private volatile boolean halted;
+    // Guarded by inputs.
+    private long started;
+    // Guarded by this: finished jobs waiting for their turn under -k, the
+    // next index to write, and the failures by exit code.
+    private final Map<Long, Job> pending = new HashMap<>();
+    private long nextToWrite;
+    private final SortedMap<Integer, Integer> failures = new TreeMap<>();
+
+    private Parallel(String[] template, boolean keepOrder, Halt halt, Iterator<String> inputs, IoContext io,
+                     Session session) {
+        this.template = template;
+        this.keepOrder = keepOrder;
+        this.halt = halt;
+        this.inputs = inputs;
+        this.io = io;
+        this.session = session;
+    }
+
+    static int run(String[] argv, IoContext io, Session session) {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean keepOrder = false;
+        Halt halt = Halt.NEVER;
+        int i = 1;
+        for (; i < argv.length && argv[i].startsWith("-"); i++) {
+            String arg = argv[i];
+            if (arg.equals("-k") || arg.equals("--keep-order"))
+                keepOrder = true;
+            else if (arg.startsWith("-j")) {
+                String count = arg.length() > 2 ? arg.substring(2) : i + 1 < argv.length ? argv[++i] : "";
+                try {
+                    jobs = Integer.parseInt(count);
+                }
+                catch (NumberFormatException e) {
+                    jobs = 0;
+                }
+                if (jobs < 1) {
+                    io.err.printf("parallel: -j: invalid job count: %s%n", count);
+                    return 2;
+                }
+            }
+            else if (arg.equals("--halt") && i + 1 < argv.length) {
+                String when = argv[++i];
+                if (when.equals("now") || when.equals("now,fail=1"))
+                    halt = Halt.NOW;
+                else if (when.equals("soon") || when.equals("soon,fail=1"))
+                    halt = Halt.SOON;
+                else if (when.equals("never"))
+                    halt = Halt.NEVER;
+                else {
+                    io.err.printf("parallel: --halt: invalid value: %s%n", when);
+                    return 2;
+                }
+            }
+            else if (arg.equals("--"))
+                break;
+            else {
+                io.err.printf("parallel: %s: invalid option%n", arg);
+                return 2;
+            }
+        }
+        if (i < argv.length && argv[i].equals("--"))
+            i++;
+        int separator = Arrays.asList(argv).subList(i, argv.length).indexOf(":::");
+        int end = separator < 0 ? argv.length : i + separator;
+        if (i == end) {
+            io.err.println("parallel: usage: parallel [-j N] [-k] [--halt now|soon] command [arg...] [::: input...]");
+            return 2;
+        }
+        Iterator<String> inputs = separator < 0
+                ? new BufferedReader(new InputStreamReader(io.in)).lines().iterator()
+                : Arrays.asList(argv).subList(end + 1, argv.length).iterator();
+        return new Parallel(Arrays.copyOfRange(argv, i, end), keepOrder, halt, inputs, io, session).run(jobs);
+    }
+
+    private int run(int jobs) {
+        AppendHandles.flushAll();
+        Thread[] workers = new Thread[jobs];
+        for (int w = 0; w < jobs; w++)
+            workers[w] = Thread.ofVirtual().name("parallel-" + w).start(this::work);
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        }
+        catch (InterruptedException e) {
+            halted = true;
+            for (Process p : running)
+                kill(p);
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            int failed = 0;
+            StringJoiner codes = new StringJoiner(", ");
+            for (Map.Entry<Integer, Integer> failure : failures.entrySet()) {
+                failed += failure.getValue();
+                codes.add("exit " + failure.getKey() + ": " + failure.getValue());
+            }
+            if (failed == 0)
+                return 0;
+            io.err.printf("parallel: %d of %d jobs failed (%s)%s%n", failed, started, codes,
+                    halted ? "; halted" : "");
+            return Math.min(failed, MAX_STATUS);
+        }
+    }
+
+    private void work() {
+        while (!halted) {
+            Job job;
+            synchronized (inputs) {
+                if (halted || !inputs.hasNext())
+                    return;
+                job = new Job(started++, inputs.next(), new Spool(memory), new Spool(memory));
+            }
+            job.status = execute(job);
+            finished(job);
+        }
+    }
+
+    private int execute(Job job) {
+        String[] argv = new Command(substitute(job.input)).externalArgv();
+        PrintStream err = new PrintStream(job.err);
+        String path = session.getPath(argv[0]);
+        if (path == null) {
+            err.printf("%s: command not found%n", argv[0]);
+            return 127;
+        }
+        ProcessBuilder pb = session.processBuilder(argv, path);
+        Process p;
+        try {
+            p = pb.start();
+        }
+        catch (IOException e) {
+            err.printf("%s: %s%n", argv[0], IoContext.reason(e));
+            return 126;
+        }
+        running.add(p);
+        try {
+            if (halted)
+                kill(p);
+            p.getOutputStream().close();
+            CompletableFuture<Long> errPump = OutputPump.start(ProcessBuilder.Redirect.PIPE, p.getErrorStream(), job.err);
+            OutputPump.pump(p.getInputStream(), job.out);
+            errPump.join();
+            return p.waitFor();
+        }
+        catch (IOException | InterruptedException e) {
+            kill(p);
+            return 1;
+        }
+        finally {
+            running.remove(p);
+        }
+    }
+
+    // Kills the job's process and whatever it started, which would
+    // otherwise keep its output pipes open.
+    private static void kill(Process p) {
+        p.descendants().forEach(ProcessHandle::destroy);
+        p.destroy();
+    }
+
+    // The command for one input: "{}" replaced in every word, or the input
+    // appended when no word has one.
+    private String[] substitute(String input) {
+        String[] argv = template.clone();
+        boolean replaced = false;
+        for (int j = 0; j < argv.length; j++) {
+            if (argv[j].contains("{}")) {
+                argv[j] = argv[j].replace("{}", input);
+                replaced = true;
+            }
+        }
+        if (replaced)
+            return argv;
+        argv = Arrays.copyOf(argv, argv.length + 1);
+        argv[argv.length - 1] = input;
+        return argv;
+    }
+
+    private void finished(Job job) {
+        if (job.status != 0 && halt != Halt.NEVER && !halted) {
+            halted = true;
+            if (halt == Halt.NOW) {
+                for (Process p : running)
+                    kill(p);
+            }
+        }
+        synchronized (this) {
+            if (job.status != 0)
+                failures.merge(job.status, 1, Integer::sum);
+            if (!keepOrder) {
+                write(job);
+                return;
+            }
+            pending.put(job.index, job);
+            for (Job next; (next = pending.remove(nextToWrite)) != null; nextToWrite++)
+                write(next);
+        }
+    }
+
+    private void write(Job job) {
+        try {
+            job.out.writeTo(io.outChannel());
+            io.err.flush();
+            job.err.writeTo(Channels.newChannel(io.err));
+            io.err.flush();
+        }
+        catch (IOException ignored) {
+        }
+        finally {
+            job.out.release();
+            job.err.release();
+        }
+    }
+
+    // A job's output: bytes in memory while the shared budget allows, then
+    // a temporary file for the rest.
+    private static final class Spool extends OutputStream {
+        private final AtomicLong budget;
+        private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path path;
+        private FileChannel file;
+
+        Spool(AtomicLong budget) {
+            this.budget = budget;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (file == null && reserve(len)) {
+                memory.write(b, off, len);
+                return;
+            }
+            if (file == null) {
+                path = Files.createTempFile("parallel", ".out");
+                file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+                file.write(buffer);
+        }
+
+        private boolean reserve(long len) {
+            for (long left; (left = budget.get()) >= len; ) {
+                if (budget.compareAndSet(left, left - len))
+                    return true;
+            }
+            return false;
+        }
+
+        synchronized void writeTo(WritableByteChannel out) throws IOException {
+            memory.writeTo(Channels.newOutputStream(out));
+            if (file == null)
+                return;
+            long size = file.size();
+            for (long position = 0; position < size; )
+                position += file.transferTo(position, size - position, out);
+        }
+
+        // Gives back the memory and deletes the spill file.
+        synchronized void release() {
+            budget.addAndGet(memory.size());
+            memory.reset();
+            if (file == null)
+                return;
+            try {
+                file.close();
+                Files.deleteIfExists(path);
+            }
+            catch (IOException ignored) {
+            }
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.*;
+
+// Builds a Sequence from one command line:
+//   sequence := pipeline (( ';' | '&' | '&&' | '||' ) pipeline)* [';' | '&']
+//   pipeline := ['time' ['-p']] command ('|' command)*  |  'time' ['-p']
+//   command  := (WORD | redirect)+
+//   redirect := [IO_NUMBER] ('>' | '>>' | '>&' | '<' | '<<' | '<<-' | '<<<') WORD
+//             | ('&>' | '&>>') WORD
+// A WORD may hold command substitutions (Lexer), except a here-document's
+// delimiter. The bodies of here-documents follow the line; the Sequence
+// lists them for the caller to read (HereDoc).
+final class Parser {
+    static final class SyntaxException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    private final Lexer lexer = new Lexer();
+    private final List<String> argv = new ArrayList<>();
+    private final List<String> patterns = new ArrayList<>();
+    private final List<Command.Substitution[]> substitutions = new ArrayList<>();
+    private int token;
+    private Sequence sequence;
+
+    Sequence parse(CharSequence line) {
+        lexer.reset(line);
+        token = lexer.next();
+        Sequence sequence = new Sequence();
+        this.sequence = sequence;
+        Sequence.Connector connector = Sequence.Connector.SEMI;
+        int listStart = lexer.start();
+        while (token != Lexer.END) {
+            sequence.add(connector, pipeline());
+            if (token == Lexer.END)
+                break;
+            if (token == Lexer.SEMI)
+                connector = Sequence.Connector.SEMI;
+            else if (token == Lexer.AMP) {
+                sequence.background(line.subSequence(listStart, lexer.start()).toString().trim());
+                connector = Sequence.Connector.SEMI;
+            }
+            else if (token == Lexer.AND_IF)
+                connector = Sequence.Connector.AND;
+            else if (token == Lexer.OR_IF)
+                connector = Sequence.Connector.OR;
+            else
+                throw unexpected();
+            token = lexer.next();
+            if (connector == Sequence.Connector.SEMI)
+                listStart = lexer.start();
+            else if (token == Lexer.END)
+                throw unexpected();
+        }
+        return sequence;
+    }
+
+    // "time" is only a keyword as the first word of a pipeline, unquoted.
+    private Pipeline pipeline() {
+        boolean timed = false;
+        boolean portable = false;
+        if (token == Lexer.WORD && lexer.text().equals("time") && !lexer.quoted()) {
+            timed = true;
+            token = lexer.next();
+            if (token == Lexer.WORD && lexer.text().equals("-p")) {
+                portable = true;
+                token = lexer.next();
+            }
+        }
+        List<Command> stages = new ArrayList<>();
+        if (timed && (token == Lexer.END || token == Lexer.SEMI || token == Lexer.AMP
+                || token == Lexer.AND_IF || token == Lexer.OR_IF))
+            return new Pipeline(stages, true, portable);
+        stages.add(command());
+        while (token == Lexer.PIPE) {
+            token = lexer.next();
+            stages.add(command());
+        }
+        return new Pipeline(stages, timed, portable);
+    }
+
+    private Command command() {
+        argv.clear();
+        patterns.clear();
+        substitutions.clear();
+        boolean glob = false;
+        boolean substituted = false;
+        List<Redirection> redirects = new ArrayList<>();
+        while (true) {
+            if (token == Lexer.WORD) {
+                argv.add(lexer.text());
+                String pattern = lexer.pattern();
+                patterns.add(pattern);
+                glob |= pattern != null;
+                Command.Substitution[] substitution = lexer.substitutions();
+                substitutions.add(substitution);
+                substituted |= substitution != null;
+                token = lexer.next();
+                continue;
+            }
+            boolean numbered = token == Lexer.IO_NUMBER;
+            String number = null;
+            if (numbered) {
+                number = lexer.text();
+                token = lexer.next();
+            }
+            else if (token != Lexer.GREAT && token != Lexer.DGREAT && token != Lexer.GREATAND
+                    && token != Lexer.AND_GREAT && token != Lexer.AND_DGREAT && !isInput(token))
+                break;
+            int operator = token;
+            token = lexer.next();
+            if (token != Lexer.WORD)
+                throw unexpected();
+            String target = lexer.text();
+            Command.Substitution[] substitutions = lexer.substitutions();
+            if (substitutions != null && (operator == Lexer.DLESS || operator == Lexer.DLESSDASH))
+                throw new SyntaxException("command substitution in a here-document delimiter is not supported");
+            token = lexer.next();
+            if (isInput(operator)) {
+                // Only stdin can be redirected from.
+                if (numbered && !number.equals("0"))
+                    throw new SyntaxException(number + ": Bad file descriptor");
+                if (operator == Lexer.LESS)
+                    redirects.add(new Redirection(0, Redirection.Kind.READ, target, substitutions));
+                else if (operator == Lexer.TLESS)
+                    redirects.add(new Redirection(0, Redirection.Kind.HERE, target + "\n", substitutions));
+                else {
+                    redirects.add(new Redirection(0, Redirection.Kind.HERE, ""));
+                    sequence.hereDocs.add(new HereDoc(target, operator == Lexer.DLESSDASH, redirects, redirects.size() - 1));
+                }
+                continue;
+            }
+            int fd = numbered ? descriptor(number) : 1;
+            if (operator == Lexer.GREATAND && substitutions == null && Lexer.isDigits(target))
+                redirects.add(new Redirection(fd, Redirection.Kind.DUP, Integer.toString(descriptor(target))));
+            else if (operator == Lexer.GREATAND && numbered)
+                throw new SyntaxException(target + ": ambiguous redirect");
+            else if (operator == Lexer.GREATAND || operator == Lexer.AND_GREAT || operator == Lexer.AND_DGREAT) {
+                Redirection.Kind kind = operator == Lexer.AND_DGREAT ? Redirection.Kind.APPEND : Redirection.Kind.WRITE;
+                redirects.add(new Redirection(1, kind, target, substitutions));
+                redirects.add(new Redirection(2, Redirection.Kind.DUP, "1"));
+            }
+            else
+                redirects.add(new Redirection(fd, operator == Lexer.DGREAT ? Redirection.Kind.APPEND : Redirection.Kind.WRITE,
+                        target, substitutions));
+        }
+        if (argv.isEmpty())
+            throw unexpected();
+        return new Command(argv.toArray(new String[0]), glob ? patterns.toArray(new String[0]) : null,
+                substituted ? substitutions.toArray(new Command.Substitution[0][]) : null,
+                redirects.isEmpty() ? List.of() : redirects);
+    }
+
+    private static boolean isInput(int token) {
+        return token == Lexer.LESS || token == Lexer.DLESS || token == Lexer.DLESSDASH || token == Lexer.TLESS;
+    }
+
+    private static int descriptor(String number) {
+        if (!number.equals("1") && !number.equals("2"))
+            throw new SyntaxException(number + ": Bad file descriptor");
+        return number.charAt(0) - '0';
+    }
+
+    private SyntaxException unexpected() {
+        return new SyntaxException("syntax error near unexpected token `" + describe(token) + "'");
+    }
+
+    private String describe(int token) {
+        switch (token) {
+            case Lexer.END:
+                return "newline";
+            case Lexer.PIPE:
+                return "|";
+            case Lexer.AND_IF:
+                return "&&";
+            case Lexer.OR_IF:
+                return "||";
+            case Lexer.SEMI:
+                return ";";
+            case Lexer.AMP:
+                return "&";
+            case Lexer.GREAT:
+                return ">";
+            case Lexer.DGREAT:
+                return ">>";
+            case Lexer.GREATAND:
+                return ">&";
+            case Lexer.AND_GREAT:
+                return "&>";
+            case Lexer.AND_DGREAT:
+                return "&>>";
+            case Lexer.LESS:
+                return "<";
+            case Lexer.DLESS:
+                return "<<";
+            case Lexer.DLESSDASH:
+                return "<<-";
+            case Lexer.TLESS:
+                return "<<<";
+            default:
+                return lexer.text();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs all stages of "a | b | c" at once. Adjacent external stages are wired
+// together by the OS through ProcessBuilder.startPipeline; builtin stages run
+// on virtual threads and are connected to their neighbours with JVM streams.
+final class Pipeline {
+    final List<Command> stages;
+    // Prefixed with "time" (or "time -p", portable); stages may then be empty.
+    final boolean timed;
+    final boolean portable;
+
+    // A started pipeline: the pid of its last process (0 if it has none);
+    // exited, once every process and builtin stage has finished; drained,
+    // with the bytes pumped, once their piped output has been copied; and
+    // the status of the last stage, once all of that has happened.
+    record Running(long pid, CompletableFuture<Void> exited, CompletableFuture<Long> drained,
+                   CompletableFuture<Integer> status) {
+    }
+
+    Pipeline(List<Command> stages) {
+        this(stages, false, false);
+    }
+
+    Pipeline(List<Command> stages, boolean timed, boolean portable) {
+        this.stages = stages;
+        this.timed = timed;
+        this.portable = portable;
+    }
+
+    int run(Session session) throws IOException, InterruptedException {
+        Running running = start(session, false);
+        String label = session.metrics.enabled ? label() : null;
+        Metrics.PhaseEvent wait = session.metrics.begin();
+        running.exited().join();
+        session.metrics.end(wait, Metrics.Phase.WAIT, label, 0);
+        Metrics.PhaseEvent drain = session.metrics.begin();
+        long bytes = running.drained().join();
+        session.metrics.end(drain, Metrics.Phase.DRAIN, label, bytes);
+        return running.status().join();
+    }
+
+    // "time": stops clock and prints its times to the session's stderr,
+    // after whatever the pipeline wrote to its stdout.
+    void reportTime(Session session, ResourceUsage.Clock clock) {
+        ResourceUsage used = clock.stop();
+        session.out.flush();
+        used.print(session.err, portable);
+    }
+
+    // The stage names, for metrics.
+    String label() {
+        StringJoiner label = new StringJoiner(" | ");
+        for (Command stage : stages)
+            label.add(stage.name());
+        return label.toString();
+    }
+
+    // Starts every stage without waiting for any. Completion is driven by
+    // Process.onExit and by the builtin and pump threads finishing, so a
+    // background job does not hold a thread just to wait for its children.
+    // A background pipeline reads an empty stdin instead of the terminal.
+    Running start(Session session, boolean background) throws IOException {
+        ResourceUsage.Clock clock = timed ? new ResourceUsage.Clock() : null;
+        int n = stages.size();
+        if (n == 0) {
+            // A bare "time".
+            if (timed)
+                reportTime(session, clock);
+            return new Running(0, CompletableFuture.completedFuture(null), CompletableFuture.completedFuture(0L),
+                    CompletableFuture.completedFuture(0));
+        }
+        Command[] commands = new Command[n];
+        String[] paths = new String[n];
+        IoContext.Target[][] fds = new IoContext.Target[n][];
+        for (int i = 0; i < n; i++) {
+            commands[i] = stages.get(i).expand(session);
+            if (!commands[i].isBuiltIn(session)) {
+                Metrics.PhaseEvent resolve = session.metrics.begin();
+                paths[i] = session.getPath(Command.unquote(commands[i].name()));
+                session.metrics.end(resolve, Metrics.Phase.RESOLVE, commands[i].name(), 0);
+            }
+            fds[i] = IoContext.resolve(commands[i].redirects, session.currentDir);
+            try {
+                IoContext.check(fds[i]);
+            }
+            catch (IOException e) {
+                // Run as a builtin stage, whose IoContext.open reports it.
+                paths[i] = null;
+            }
+        }
+        Process[] processes = new Process[n];
+        ProcessBuilder[] builders = new ProcessBuilder[n];
+        List<Process> started = new ArrayList<>();
+        Metrics.PhaseEvent spawn = session.metrics.begin();
+        try {
+            int i = 0;
+            while (i < n) {
+                if (paths[i] == null) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < n && paths[i] != null) {
+                    builders[i] = builder(session, commands[i], paths[i], fds[i], i == 0 && !background, i == n - 1);
+                    i++;
+                    // A stage reading "< f" takes no pipe, so it starts a new segment.
+                    if (fds[i - 1][1] != IoContext.STDOUT || i < n && fds[i][0] != null)
+                        break;
+                }
+                List<Process> segment = ProcessBuilder.startPipeline(Arrays.asList(builders).subList(start, i));
+                for (int k = 0; k < segment.size(); k++) {
+                    processes[start + k] = segment.get(k);
+                    if (clock != null)
+                        clock.watch(segment.get(k));
+                }
+                started.addAll(segment);
+            }
+        }
+        catch (IOException e) {
+            // A program that cannot be run (not executable, a bad
+            // interpreter) fails the pipeline as a whole, as no stage has
+            // been wired to another yet.
+            for (Process p : started)
+                p.destroy();
+            session.err.printf("%s: %s%n", failedStage(e, builders, commands), IoContext.reason(e));
+            CompletableFuture<Void> none = CompletableFuture.completedFuture(null);
+            return new Running(0, none, CompletableFuture.completedFuture(0L), CompletableFuture.completedFuture(126));
+        }
+        if (spawn != null)
+            session.metrics.end(spawn, Metrics.Phase.SPAWN, label(), 0);
+
+        List<CompletableFuture<?>> exits = new ArrayList<>();
+        List<CompletableFuture<Long>> pumps = new ArrayList<>();
+        int[] statuses = new int[n];
+        InputStream[] pipeIn = new InputStream[n];
+        for (int i = 0; i < n; i++) {
+            Command stage = commands[i];
+            if (processes[i] != null) {
+                Process p = processes[i];
+                if (fds[i][0] != null) {
+                    // Its stdin is redirected: what the stage before writes is not read.
+                    if (pipeIn[i] != null)
+                        pipeIn[i].close();
+                    else if (i > 0 && processes[i - 1] != null && fds[i - 1][1] == IoContext.STDOUT)
+                        processes[i - 1].getInputStream().close();
+                }
+                else if (pipeIn[i] != null)
+                    pumps.add(OutputPump.feed(pipeIn[i], p.getOutputStream()));
+                else if (i == 0 && background || i > 0 && processes[i - 1] != null && fds[i - 1][1] != IoContext.STDOUT)
+                    p.getOutputStream().close();
+                else if (i == 0)
+                    session.feedInput(p);
+                exits.add(p.onExit());
+                pumps.addAll(IoContext.pump(p, builders[i], fds[i], i == n - 1 ? session.out : null, session.err));
+                // "2>&1 >file |": stdout left the pipe, so stderr feeds the next stage.
+                if (i < n - 1 && fds[i][1] != IoContext.STDOUT && fds[i][2] == IoContext.STDOUT)
+                    pipeIn[i + 1] = p.getErrorStream();
+                continue;
+            }
+            InputStream in;
+            if (i == 0)
+                in = InputStream.nullInputStream();
+            else if (pipeIn[i] != null)
+                in = pipeIn[i];
+            else
+                in = processes[i - 1].getInputStream();
+            PrintStream out;
+            if (i == n - 1)
+                out = session.out;
+            else if (fds[i][1] != IoContext.STDOUT && fds[i][2] != IoContext.STDOUT) {
+                out = session.out;
+                if (processes[i + 1] == null)
+                    pipeIn[i + 1] = InputStream.nullInputStream();
+                else
+                    processes[i + 1].getOutputStream().close();
+            }
+            else if (processes[i + 1] != null)
+                out = new PrintStream(processes[i + 1].getOutputStream());
+            else {
+                PipedInputStream next = new PipedInputStream(64 * 1024);
+                pipeIn[i + 1] = next;
+                out = new PrintStream(new PipedOutputStream(next));
+            }
+            if (clock != null)
+                clock.countShell();
+            int index = i;
+            // One of several stages runs in a subshell, so "cd / | cat" leaves
+            // the shell where it was; a lone stage is already in a job's own.
+            Session shell = n > 1 ? session.subshell(in, out) : session;
+            CompletableFuture<Void> finished = new CompletableFuture<>();
+            exits.add(finished);
+            Thread.ofVirtual().start(() -> {
+                try (IoContext io = IoContext.open(fds[index], in, out, session.err)) {
+                    if (stage.isBuiltIn(shell)) {
+                        Metrics.PhaseEvent builtin = session.metrics.begin();
+                        statuses[index] = shell.runBuiltin(stage.argv, io);
+                        session.metrics.end(builtin, Metrics.Phase.BUILTIN, stage.name(), 0);
+                    }
+                    else {
+                        io.err.printf("%s: command not found%n", stage.name());
+                        statuses[index] = 127;
+                    }
+                }
+                catch (IOException e) {
+                    session.err.println(e.getMessage());
+                    statuses[index] = 1;
+                }
+                finally {
+                    if (out != session.out)
+                        out.close();
+                    try {
+                        in.close();
+                    }
+                    catch (IOException ignored) {
+                    }
+                    finished.complete(null);
+                }
+            });
+        }
+        Process last = processes[n - 1];
+        CompletableFuture<Void> exited = CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[0]));
+        CompletableFuture<Long> drained = CompletableFuture.allOf(pumps.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> OutputPump.join(pumps));
+        CompletableFuture<Integer> status = exited.thenCombine(drained,
+                (v, bytes) -> last != null ? last.exitValue() : statuses[n - 1]);
+        if (timed)
+            status = status.whenComplete((s, e) -> reportTime(session, clock));
+        return new Running(last != null ? last.pid() : 0, exited, drained, status);
+    }
+
+    // The name of the stage startPipeline could not start, which its
+    // message gives only as the program run ("Cannot run program "x" ...").
+    private static String failedStage(IOException e, ProcessBuilder[] builders, Command[] commands) {
+        String message = String.valueOf(e.getMessage());
+        int open = message.indexOf('"');
+        int close = message.indexOf('"', open + 1);
+        if (open < 0 || close < 0)
+            return commands[0].name();
+        String program = message.substring(open + 1, close);
+        for (int i = 0; i < builders.length; i++) {
+            if (builders[i] != null && builders[i].command().get(0).equals(program))
+                return Command.unquote(commands[i].name());
+        }
+        return program;
+    }
+
+    private static ProcessBuilder builder(Session session, Command stage, String path, IoContext.Target[] fds,
+                                          boolean first, boolean last) {
+        ProcessBuilder pb = session.processBuilder(stage.externalArgv(), path);
+        if (first)
+            session.inheritInput(pb);
+        IoContext.redirect(pb, fds, last ? session.out : null, session.err);
+        return pb;
+    }
+}
@@ -0,0 +1,14 @@
+// One redirection of a command, in the order written: "2>>f" is
+// (2, APPEND, "f") and "2>&1" is (2, DUP, "1"). "&>f" is stored as ">f 2>&1".
+// "<f" is (0, READ, "f") and "<<<word" is (0, HERE, "word\n"); a
+// here-document is (0, HERE, body) once HereDoc has read it, or a READ of
+// the temporary file a long body went to. A target with command
+// substitutions has them cut out of its text, as a word's are, until
+// Command.expand splices their output back in.
+record Redirection(int fd, Kind kind, String target, Command.Substitution[] substitutions) {
+    enum Kind { WRITE, APPEND, DUP, READ, HERE }
+
+    Redirection(int fd, Kind kind, String target) {
+        this(fd, kind, target, null);
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// What "time" reports: elapsed time, and the user and system CPU time of
+// what the timed pipeline ran.
+//
+// An external command is counted through its own process tree, read from
+// /proc: each process's utime and stime, the cutime and cstime of the
+// children it has reaped, and the children it has not reaped yet, which are
+// counted the same way. Those figures are gone once a process is reaped, so
+// a Clock samples the tree every tick while the pipeline's processes run;
+// CPU a process uses in its last tick can go uncounted, and so can a child
+// that comes and goes within one. Without procfs only ProcessHandle.Info's
+// total for the pipeline's own processes is counted, as user time. The
+// shell's own cutime and cstime are no use here: they take in every child
+// the JVM reaps, a background job's or another daemon session's as much as
+// this pipeline's.
+//
+// Builtins run on the shell's own threads, which the kernel does not tell
+// apart, so for a pipeline with a builtin stage the shell's process-wide
+// utime and stime over the interval are added. That also counts whatever
+// else the shell did meanwhile, such as the builtins of a background job.
+record ResourceUsage(long wallNanos, long userNanos, long sysNanos) {
+    private static final Path STAT = Path.of("/proc/self/stat");
+    // /proc reports clock ticks at USER_HZ, which Linux fixes at 100.
+    private static final long NANOS_PER_TICK = 10_000_000L;
+    private static final long TICK_MILLIS = 10;
+    private static final long[] NONE = new long[0];
+
+    // A process as last sampled: its own CPU time, that of the children it
+    // has reaped, and the pids of those it has not.
+    private record Sample(long user, long sys, long reapedUser, long reapedSys, long[] children) {
+    }
+
+    // A "time" in progress: started when the pipeline is, told about each
+    // process it starts and whether it runs a builtin, stopped when it has
+    // finished.
+    static final class Clock {
+        private final long start = System.nanoTime();
+        private final long[] shellStart = shell();
+        private final List<Process> processes = new CopyOnWriteArrayList<>();
+        private final Map<Long, Sample> samples = new ConcurrentHashMap<>();
+        private volatile boolean builtins;
+        // Samples the processes while any is running; null when none is.
+        private Thread sampler;
+
+        // The pipeline runs a builtin: counts the shell's own CPU time.
+        void countShell() {
+            builtins = true;
+        }
+
+        // Counts p's CPU time, and that of its descendants.
+        synchronized void watch(Process p) {
+            processes.add(p);
+            sample(p.pid());
+            if (sampler == null)
+                sampler = Thread.ofVirtual().name("time-sampler").start(this::poll);
+        }
+
+        private void poll() {
+            try {
+                while (true) {
+                    boolean running = false;
+                    for (Process p : processes) {
+                        if (!p.isAlive())
+                            continue;
+                        running = true;
+                        sample(p.pid());
+                    }
+                    synchronized (this) {
+                        if (!running) {
+                            sampler = null;
+                            return;
+                        }
+                    }
+                    Thread.sleep(TICK_MILLIS);
+                }
+            }
+            catch (InterruptedException ignored) {
+            }
+        }
+
+        // Samples pid and its children, keeping the last sample of any
+        // that has been reaped.
+        private void sample(long pid) {
+            long[] cpu = stat(Path.of("/proc", Long.toString(pid), "stat"), true);
+            if (cpu == null) {
+                Optional<Duration> total = ProcessHandle.of(pid).flatMap(h -> h.info().totalCpuDuration());
+                if (total.isPresent())
+                    samples.put(pid, new Sample(total.get().toNanos(), 0, 0, 0, NONE));
+                return;
+            }
+            long[] children = children(pid);
+            samples.put(pid, new Sample(cpu[0], cpu[1], cpu[2], cpu[3], children));
+            for (long child : children)
+                sample(child);
+        }
+
+        ResourceUsage stop() {
+            long[] used = new long[2];
+            for (Process p : processes)
+                add(used, p.pid());
+            if (builtins) {
+                long[] shell = shell();
+                used[0] += shell[0] - shellStart[0];
+                used[1] += shell[1] - shellStart[1];
+            }
+            return new ResourceUsage(System.nanoTime() - start, used[0], used[1]);
+        }
+
+        // Adds the CPU time of pid and its descendants to used.
+        private void add(long[] used, long pid) {
+            Sample sample = samples.get(pid);
+            if (sample == null)
+                return;
+            used[0] += sample.user() + sample.reapedUser();
+            used[1] += sample.sys() + sample.reapedSys();
+            for (long child : sample.children())
+                add(used, child);
+        }
+    }
+
+    // The shell's own CPU time, without its children's.
+    private static long[] shell() {
+        long[] cpu = stat(STAT, false);
+        if (cpu != null)
+            return cpu;
+        return new long[] { ProcessHandle.current().info().totalCpuDuration().map(Duration::toNanos).orElse(0L), 0 };
+    }
+
+    // The children of pid's main thread, which for a shell or a
+    // single-threaded command is all of them.
+    private static long[] children(long pid) {
+        try {
+            String children = Files.readString(Path.of("/proc", Long.toString(pid), "task", Long.toString(pid), "children")).trim();
+            if (children.isEmpty())
+                return NONE;
+            return Arrays.stream(children.split(" ")).mapToLong(Long::parseLong).toArray();
+        }
+        catch (IOException | RuntimeException e) {
+            return NONE;
+        }
+    }
+
+    // User and system time from a /proc stat file, followed by those of the
+    // reaped children if children; null if it cannot be read.
+    private static long[] stat(Path file, boolean children) {
+        try {
+            String stat = Files.readString(file);
+            // Fields after "pid (comm) ": fields[0] is field 3 (state), so
+            // utime, stime, cutime and cstime (14-17) are fields[11..14].
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long[] cpu = new long[children ? 4 : 2];
+            for (int i = 0; i < cpu.length; i++)
+                cpu[i] = Long.parseLong(fields[11 + i]) * NANOS_PER_TICK;
+            return cpu;
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // bash's format, or with portable (time -p) the POSIX one.
+    void print(PrintStream out, boolean portable) {
+        if (portable)
+            out.printf("real %.2f%nuser %.2f%nsys %.2f%n", wallNanos / 1e9, userNanos / 1e9, sysNanos / 1e9);
+        else
+            out.printf("%nreal\t%s%nuser\t%s%nsys\t%s%n", minutes(wallNanos), minutes(userNanos), minutes(sysNanos));
+    }
+
+    private static String minutes(long nanos) {
+        long millis = nanos / 1_000_000;
+        return String.format("%dm%d.%03ds", millis / 60_000, millis / 1000 % 60, millis % 1000);
+    }
+}
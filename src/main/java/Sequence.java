@@ -0,0 +1,39 @@
+import java.util.*;
+
+// Pipelines joined by ';', '&', '&&' or '||'. connectors.get(i) says how
+// pipelines.get(i) depends on the status of the one before it; '&' ends an
+// and-or list like ';' does, and also puts that list in the background.
+final class Sequence {
+    enum Connector { SEMI, AND, OR }
+
+    final List<Pipeline> pipelines = new ArrayList<>();
+    final List<Connector> connectors = new ArrayList<>();
+    // Index of the last pipeline of each background list -> its source text.
+    final Map<Integer, String> background = new HashMap<>();
+    // In the order their bodies follow the line.
+    final List<HereDoc> hereDocs = new ArrayList<>();
+
+    void add(Connector connector, Pipeline pipeline) {
+        connectors.add(connector);
+        pipelines.add(pipeline);
+    }
+
+    // Marks the and-or list ending with the last pipeline added as a job.
+    void background(String text) {
+        background.put(pipelines.size() - 1, text);
+    }
+
+    // Removes the temporary files of long here-documents.
+    void deleteHereDocs() {
+        for (HereDoc hereDoc : hereDocs)
+            hereDoc.delete();
+    }
+
+    // Index of the last pipeline in the and-or list that starts at from.
+    int listEnd(int from) {
+        int end = from;
+        while (end + 1 < pipelines.size() && connectors.get(end + 1) != Connector.SEMI)
+            end++;
+        return end;
+    }
+}
@@ -0,0 +1,637 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// One shell: its working directory, environment, standard streams, options,
+// jobs and hashed commands. The shell on the terminal (Main) is one Session
+// over the process's own descriptors; the daemon (Daemon) runs one per
+// client connection, each on its own virtual thread. So nothing a session
+// changes may live in JVM-wide state: cd moves currentDir rather than
+// user.dir, and children are started in it with the session's environment.
+final class Session {
+    private static final int SCRIPT_BUFFER_SIZE = 1 << 16;
+    // Bytes a command substitution keeps, unless $SHELL_CAPTURE_LIMIT says.
+    private static final long CAPTURE_LIMIT = 64L << 20;
+
+    Path currentDir;
+    final Map<String, String> env;
+    final InputStream in;
+    final PrintStream out;
+    final PrintStream err;
+    private final boolean interactive;
+    final Jobs jobs = new Jobs(this);
+    final CommandHash commandHash;
+    // set -o metrics and the "stats" it keeps; a subshell's count for the shell.
+    final Metrics metrics;
+    private final Parser parser = new Parser();
+    volatile boolean running = true;
+    boolean errexit;
+    // set -o coreutils: run cat, head, tail and wc in-process (CoreUtils).
+    boolean coreutils;
+    int lastStatus;
+    // Inside $(...): "command not found" and syntax errors go to err rather
+    // than out, so they are not taken as the substituted text.
+    boolean diagnosticsToErr;
+
+    Session(Path currentDir, Map<String, String> env, InputStream in, PrintStream out, PrintStream err, boolean interactive) {
+        this(currentDir, env, in, out, err, interactive, new CommandHash(), new Metrics());
+    }
+
+    private Session(Path currentDir, Map<String, String> env, InputStream in, PrintStream out, PrintStream err,
+                    boolean interactive, CommandHash commandHash, Metrics metrics) {
+        this.currentDir = currentDir;
+        this.env = env;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+        this.interactive = interactive;
+        this.commandHash = commandHash;
+        this.metrics = metrics;
+    }
+
+    // err for a session whose stdout is buffered: writes out whatever
+    // stdout is holding first, so that with 2>&1 the shell's messages land after the
+    // output before them rather than overtaking it.
+    static OutputStream afterOutput(PrintStream stdout, OutputStream err) {
+        return new FilterOutputStream(err) {
+            @Override
+            public void write(int b) throws IOException {
+                stdout.flush();
+                this.out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                stdout.flush();
+                this.out.write(b, off, len);
+            }
+
+            // Also before a child is handed the descriptor (OutputPump).
+            @Override
+            public void flush() throws IOException {
+                stdout.flush();
+                this.out.flush();
+            }
+        };
+    }
+
+    // The session on the shell process's own descriptors and environment.
+    static Session local(boolean interactive) {
+        return new Session(Path.of(System.getProperty("user.dir")), System.getenv(), System.in, System.out, System.err,
+                interactive);
+    }
+
+    // The script the batch-mode arguments name: "-c text", a file, or with
+    // no arguments stdin. The shell has no positional parameters, so
+    // arguments after the text or file name are a usage error rather than
+    // being dropped. Returns null after printing why there is none, with
+    // lastStatus set to what to exit with.
+    BufferedReader openScript(String[] args, InputStream stdin) {
+        if (args.length == 0)
+            return new BufferedReader(new InputStreamReader(stdin), SCRIPT_BUFFER_SIZE);
+        if (args[0].equals("-c") && args.length < 2) {
+            err.println("-c: option requires an argument");
+            lastStatus = 2;
+            return null;
+        }
+        if (args.length > (args[0].equals("-c") ? 2 : 1)) {
+            err.println("usage: shell [-c command | script]: script arguments are not supported");
+            lastStatus = 2;
+            return null;
+        }
+        if (args[0].equals("-c"))
+            return new BufferedReader(new StringReader(args[1]));
+        try {
+            return new BufferedReader(new InputStreamReader(Files.newInputStream(currentDir.resolve(args[0]))),
+                    SCRIPT_BUFFER_SIZE);
+        }
+        catch (IOException | InvalidPathException e) {
+            err.printf("%s: No such file or directory%n", args[0]);
+            lastStatus = 127;
+            return null;
+        }
+    }
+
+    int runScript(BufferedReader script) throws IOException, InterruptedException {
+        String line;
+        while (running && (line = script.readLine()) != null) {
+            Sequence sequence = parse(line);
+            if (sequence == null) {
+                lastStatus = 2;
+                continue;
+            }
+            if (readHereDocs(sequence, script::readLine))
+                execute(sequence);
+        }
+        AppendHandles.flushAll();
+        out.flush();
+        return lastStatus;
+    }
+
+    // Prompts, reads and runs lines until exit or end of input.
+    int interact(LineEditor lineEditor) throws IOException, InterruptedException {
+        while (running) {
+            AppendHandles.flushAll();
+            jobs.report(out, true);
+            out.print("$ ");
+            out.flush();
+            String input = lineEditor.readLine("$ ");
+            if (input == null)
+                break;
+            Sequence sequence = parse(input);
+            if (sequence == null)
+                continue;
+            HereDoc.Lines more = () -> {
+                out.print("> ");
+                out.flush();
+                return lineEditor.readContinuation("> ");
+            };
+            if (readHereDocs(sequence, more))
+                execute(sequence);
+        }
+        AppendHandles.flushAll();
+        out.flush();
+        return lastStatus;
+    }
+
+    // Ends the session from outside, as when its client goes away: no new
+    // line is started, and background jobs are killed as a shell's are by
+    // the SIGHUP of a closed terminal.
+    void hangup() {
+        running = false;
+        jobs.hangup();
+    }
+
+    // Returns null after printing the message for a syntax error.
+    private Sequence parse(String line) {
+        Metrics.PhaseEvent tokenize = metrics.begin();
+        try {
+            return parser.parse(line);
+        }
+        catch (Parser.SyntaxException e) {
+            diagnostics().println(e.getMessage());
+            return null;
+        }
+        finally {
+            metrics.end(tokenize, Metrics.Phase.TOKENIZE, line, 0);
+        }
+    }
+
+    // Reads the bodies of the here-documents on the line just parsed, from
+    // the lines after it. False, with the reason printed, if one could not be
+    // read; the line is then not run.
+    private boolean readHereDocs(Sequence sequence, HereDoc.Lines lines) {
+        for (HereDoc hereDoc : sequence.hereDocs) {
+            try {
+                hereDoc.read(lines, err);
+            }
+            catch (IOException e) {
+                err.println("here-document: " + IoContext.reason(e));
+                sequence.deleteHereDocs();
+                lastStatus = 1;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs a parsed line. Temporary files of its here-documents are removed
+    // once it is done, and any jobs it started with them.
+    int execute(Sequence sequence) throws IOException, InterruptedException {
+        List<CompletableFuture<Integer>> started = new ArrayList<>();
+        try {
+            return executePipelines(sequence, started);
+        }
+        finally {
+            if (!sequence.hereDocs.isEmpty())
+                CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0]))
+                        .whenComplete((v, e) -> sequence.deleteHereDocs());
+        }
+    }
+
+    private int executePipelines(Sequence sequence, List<CompletableFuture<Integer>> started)
+            throws IOException, InterruptedException {
+        int status = 0;
+        for (int i = 0; i < sequence.pipelines.size() && running; i++) {
+            Sequence.Connector connector = sequence.connectors.get(i);
+            if ((connector == Sequence.Connector.AND && status != 0) ||
+                (connector == Sequence.Connector.OR && status == 0))
+                continue;
+            String job = connector == Sequence.Connector.SEMI ? sequence.background.get(sequence.listEnd(i)) : null;
+            if (job != null) {
+                Jobs.Job background = jobs.start(sequence, i, sequence.listEnd(i), job);
+                started.add(background.status);
+                if (interactive)
+                    Jobs.announce(background, err);
+                i = sequence.listEnd(i);
+                status = 0;
+                lastStatus = 0;
+                continue;
+            }
+            Pipeline pipeline = sequence.pipelines.get(i);
+            if (pipeline.stages.size() != 1)
+                status = pipeline.run(this);
+            else if (pipeline.timed) {
+                ResourceUsage.Clock clock = new ResourceUsage.Clock();
+                status = runCommand(pipeline.stages.get(0), clock);
+                pipeline.reportTime(this, clock);
+            }
+            else
+                status = runCommand(pipeline.stages.get(0), null);
+            lastStatus = status;
+            // set -e ignores failures that an && or || list goes on to test
+            boolean tested = i + 1 < sequence.pipelines.size() && sequence.connectors.get(i + 1) != Sequence.Connector.SEMI;
+            if (errexit && status != 0 && !tested && running)
+                running = false;
+        }
+        return status;
+    }
+
+    // Runs one command; clock, if not null, times it.
+    private int runCommand(Command command, ResourceUsage.Clock clock) throws IOException, InterruptedException {
+        command = command.expand(this);
+        String[] parts = command.argv;
+        String cmd = command.name();
+        IoContext.Target[] fds = IoContext.resolve(command.redirects, currentDir);
+        if (isBuiltin(parts)) {
+            if (clock != null)
+                clock.countShell();
+            IoContext io;
+            try {
+                io = IoContext.open(fds, in, out, err);
+            }
+            catch (IOException e) {
+                err.println(e.getMessage());
+                return 1;
+            }
+            try (io) {
+                if (!cmd.equals("exit")) {
+                    Metrics.PhaseEvent builtin = metrics.begin();
+                    int status = runBuiltin(parts, io);
+                    metrics.end(builtin, Metrics.Phase.BUILTIN, cmd, 0);
+                    return status;
+                }
+                running = false;
+                if (parts.length == 1)
+                    return lastStatus;
+                try {
+                    return Integer.parseInt(parts[1]) & 0xff;
+                }
+                catch (NumberFormatException e) {
+                    io.out.printf("exit: %s: numeric argument required%n", parts[1]);
+                    return 2;
+                }
+            }
+        }
+        Metrics.PhaseEvent resolve = metrics.begin();
+        String path = getPath(Command.unquote(cmd));
+        metrics.end(resolve, Metrics.Phase.RESOLVE, cmd, 0);
+        if (path == null) {
+            diagnostics().printf("%s: command not found%n", cmd);
+            return 127;
+        }
+        try {
+            IoContext.check(fds);
+        }
+        catch (IOException e) {
+            err.println(e.getMessage());
+            return 1;
+        }
+        Metrics.PhaseEvent spawn = metrics.begin();
+        ProcessBuilder pb = processBuilder(command.externalArgv(), path);
+        inheritInput(pb);
+        IoContext.redirect(pb, fds, out, err);
+        Process p;
+        try {
+            p = pb.start();
+        }
+        catch (IOException e) {
+            err.printf("%s: %s%n", cmd, IoContext.reason(e));
+            return 126;
+        }
+        if (clock != null)
+            clock.watch(p);
+        if (fds[0] == null)
+            feedInput(p);
+        List<CompletableFuture<Long>> pumps = IoContext.pump(p, pb, fds, out, err);
+        metrics.end(spawn, Metrics.Phase.SPAWN, cmd, 0);
+        Metrics.PhaseEvent wait = metrics.begin();
+        int status = p.waitFor();
+        metrics.end(wait, Metrics.Phase.WAIT, cmd, 0);
+        Metrics.PhaseEvent drain = metrics.begin();
+        long bytes = OutputPump.join(pumps);
+        metrics.end(drain, Metrics.Phase.DRAIN, cmd, bytes);
+        return status;
+    }
+
+    int runBuiltin(String[] parts, IoContext io) {
+        PrintStream out = io.out;
+        // Nothing is left of a command whose words all substituted to nothing.
+        if (parts.length == 0)
+            return 0;
+        switch (parts[0]) {
+            case "echo":
+                if (parts.length > 1) {
+                    String arg = String.join(" ", Arrays.copyOfRange(parts, 1, parts.length));
+                    out.println(arg);
+                }
+                break;
+            case "type":
+                if (parts.length > 1) {
+                    String term = String.join(" ", Arrays.copyOfRange(parts, 1, parts.length));
+                    if (Main.commands.contains(term) || coreutils && CoreUtils.NAMES.contains(term))
+                        out.printf("%s is a shell builtin%n", term);
+                    else {
+                        String path = getPath(term);
+                        if (path == null) {
+                            out.printf("%s: not found%n", term);
+                            return 1;
+                        }
+                        out.printf("%s is %s%n", term, path);
+                    }
+                }
+                break;
+            case "pwd":
+                out.println(currentDir);
+                break;
+            case "cd":
+                if (parts.length > 1) {
+                    String arg = String.join(" ", Arrays.copyOfRange(parts, 1, parts.length));
+                    Path newPath;
+                    String homeDir = env.get("HOME");
+                    if (homeDir == null)
+                        homeDir = System.getProperty("user.home");
+                    if (arg.startsWith("/"))
+                        newPath = Path.of(arg);
+                    else if (arg.equals("~"))
+                        newPath = Path.of(homeDir);
+                    else if (arg.startsWith("~/"))
+                        newPath = Path.of(homeDir, arg.substring(2));
+                    else
+                        newPath = currentDir.resolve(arg).normalize();
+                    if (Files.isDirectory(newPath))
+                        currentDir = newPath.toAbsolutePath();
+                    else {
+                        out.printf("cd: %s: No such file or directory%n", arg);
+                        return 1;
+                    }
+                }
+                else {
+                    out.println("cd: missing argument");
+                    return 1;
+                }
+                break;
+            case "set":
+                for (int j = 1; j < parts.length; j++) {
+                    if (parts[j].equals("-e"))
+                        errexit = true;
+                    else if (parts[j].equals("+e"))
+                        errexit = false;
+                    else if (parts[j].equals("-o") || parts[j].equals("+o")) {
+                        boolean on = parts[j].equals("-o");
+                        if (++j == parts.length) {
+                            out.printf("%-15s\t%s%n", "coreutils", coreutils ? "on" : "off");
+                            out.printf("%-15s\t%s%n", "errexit", errexit ? "on" : "off");
+                            out.printf("%-15s\t%s%n", "metrics", metrics.enabled ? "on" : "off");
+                        }
+                        else if (parts[j].equals("errexit"))
+                            errexit = on;
+                        else if (parts[j].equals("coreutils"))
+                            coreutils = on;
+                        else if (parts[j].equals("metrics"))
+                            metrics.enabled = on;
+                        else {
+                            out.printf("set: %s: invalid option name%n", parts[j]);
+                            return 2;
+                        }
+                    }
+                    else {
+                        out.printf("set: %s: invalid option%n", parts[j]);
+                        return 2;
+                    }
+                }
+                break;
+            case "cat":
+            case "head":
+            case "tail":
+            case "wc":
+                return CoreUtils.run(parts, io, currentDir);
+            case "jobs":
+                jobs.report(out, false);
+                break;
+            case "parallel":
+                return Parallel.run(parts, io, this);
+            case "stats":
+                if (parts.length > 1 && parts[1].equals("-r"))
+                    metrics.reset();
+                else if (parts.length > 1) {
+                    out.println("stats: usage: stats [-r]");
+                    return 2;
+                }
+                else if (!metrics.print(out)) {
+                    out.println("stats: nothing recorded; turn on with set -o metrics");
+                    return 1;
+                }
+                break;
+            case "fg": {
+                Jobs.Job job = jobs.find(parts.length > 1 ? parts[1] : null);
+                if (job == null) {
+                    out.printf("fg: %s: no such job%n", parts.length > 1 ? parts[1] : "current");
+                    return 1;
+                }
+                out.println(job.command);
+                flushBeforeWait(out);
+                int status = job.status.join();
+                jobs.remove(job);
+                return status;
+            }
+            case "wait": {
+                flushBeforeWait(out);
+                if (parts.length == 1) {
+                    for (Jobs.Job job : jobs.all()) {
+                        job.status.join();
+                        jobs.remove(job);
+                    }
+                    break;
+                }
+                int status = 0;
+                for (int j = 1; j < parts.length; j++) {
+                    Jobs.Job job = jobs.find(parts[j]);
+                    if (job == null) {
+                        out.printf("wait: %s: no such job%n", parts[j]);
+                        status = 127;
+                        continue;
+                    }
+                    status = job.status.join();
+                    jobs.remove(job);
+                }
+                return status;
+            }
+            case "hash":
+                if (parts.length == 1)
+                    commandHash.print(out);
+                else if (parts[1].equals("-r"))
+                    commandHash.clear();
+                else if (parts[1].equals("-p")) {
+                    if (parts.length < 4) {
+                        out.println("hash: usage: hash [-r] [-p pathname] [name ...]");
+                        return 1;
+                    }
+                    commandHash.put(parts[3], parts[2]);
+                }
+                else {
+                    int status = 0;
+                    for (int j = 1; j < parts.length; j++) {
+                        if (!commandHash.seed(parts[j], env.get("PATH"))) {
+                            out.printf("hash: %s: not found%n", parts[j]);
+                            status = 1;
+                        }
+                    }
+                    return status;
+                }
+                break;
+        }
+        return 0;
+    }
+
+    // Builtins proper, plus the coreutils ones while that option is on and
+    // they support the arguments given.
+    boolean isBuiltin(String[] argv) {
+        return argv.length == 0 || Main.commands.contains(argv[0]) || coreutils && CoreUtils.supports(argv);
+    }
+
+    // A copy of this session's directory, environment, options and hashed
+    // commands, with its own jobs and the given stdin and stdout, so that
+    // cd, set, hash and exit run in it leave this session as it was.
+    // Builtin stages of a pipeline, background jobs and command
+    // substitutions each run in one.
+    Session subshell(InputStream in, PrintStream out) {
+        Session subshell = new Session(currentDir, env, in, out, err, false, commandHash.copy(), metrics);
+        subshell.coreutils = coreutils;
+        subshell.errexit = errexit;
+        subshell.lastStatus = lastStatus;
+        subshell.diagnosticsToErr = diagnosticsToErr;
+        return subshell;
+    }
+
+    // Where the shell's own diagnostics go: stdout, as the shell has always
+    // printed them, except in a substitution.
+    private PrintStream diagnostics() {
+        return diagnosticsToErr ? err : out;
+    }
+
+    // $(command): runs command in a subshell, a copy of this session with
+    // its stdout captured, and returns what it printed without trailing
+    // newlines. Builtins print into the Capture directly; a child's stdout
+    // is pumped into it. What the subshell changes (cd, set, exit) stays in
+    // it.
+    String substitute(String command) throws IOException {
+        long limit = captureLimit();
+        Capture capture = new Capture(limit);
+        PrintStream captured = new PrintStream(capture, false);
+        Session subshell = subshell(in, captured);
+        // As in bash without inherit_errexit.
+        subshell.errexit = false;
+        subshell.diagnosticsToErr = true;
+        try {
+            subshell.runScript(new BufferedReader(new StringReader(command)));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        finally {
+            captured.flush();
+            subshell.jobs.hangup();
+        }
+        if (capture.dropped() > 0)
+            err.printf("$(%s): output truncated to %d bytes (SHELL_CAPTURE_LIMIT)%n", command, limit);
+        return capture.text();
+    }
+
+    private long captureLimit() {
+        String limit = env.get("SHELL_CAPTURE_LIMIT");
+        if (limit != null) {
+            try {
+                return Math.max(0, Long.parseLong(limit.trim()));
+            }
+            catch (NumberFormatException ignored) {
+            }
+        }
+        return CAPTURE_LIMIT;
+    }
+
+    // Before blocking on a job: writes out what the builtin's stdout, the
+    // session's buffered stdout and pending ">>" files hold, so output from
+    // ahead of the wait does not appear only once it is over.
+    private void flushBeforeWait(PrintStream builtinOut) {
+        builtinOut.flush();
+        out.flush();
+        AppendHandles.flushAll();
+    }
+
+    String getPath(String command) {
+        if (command.contains("/")) {
+            Path cmdPath = currentDir.resolve(command);
+            if (Files.isRegularFile(cmdPath) && Files.isExecutable(cmdPath))
+                return command;
+        }
+        String hashed = commandHash.lookup(command, env.get("PATH"));
+        if (hashed != null)
+            return hashed;
+        Path cwdPath = currentDir.resolve(command);
+        if (Files.exists(cwdPath) && Files.isExecutable(cwdPath))
+            return cwdPath.toAbsolutePath().toString();
+        return null;
+    }
+
+    // A builder for argv, resolved by getPath to path, that starts the
+    // child in this session's directory with its environment. The program
+    // is what path names. The JVM has no way to exec a path under another
+    // argv[0], so a bare name is kept, as the program will see it, only
+    // where the JVM's own search finds the same file: a name this session
+    // found on a PATH that is the JVM's. A "hash -p" name, a program in the
+    // current directory or a different PATH all run path.
+    ProcessBuilder processBuilder(String[] argv, String path) {
+        if (!argv[0].contains("/") && !(Objects.equals(env.get("PATH"), System.getenv("PATH"))
+                && commandHash.searched(argv[0], path))) {
+            argv = argv.clone();
+            argv[0] = path;
+        }
+        ProcessBuilder pb = new ProcessBuilder(argv).directory(currentDir.toFile());
+        if (env != System.getenv()) {
+            Map<String, String> environment = pb.environment();
+            environment.clear();
+            environment.putAll(env);
+        }
+        return pb;
+    }
+
+    // A foreground child reads the session's stdin: the shell's own
+    // descriptor when that is what the session has, else (a daemon client's
+    // input) whatever arrives while the child runs, copied by feedInput.
+    void inheritInput(ProcessBuilder pb) {
+        if (in == System.in)
+            pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
+    }
+
+    void feedInput(Process p) {
+        if (in == System.in)
+            return;
+        Thread feeder = Thread.ofVirtual().name("stdin").start(() -> {
+            byte[] buf = new byte[8192];
+            try (OutputStream child = p.getOutputStream()) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    child.write(buf, 0, n);
+                    child.flush();
+                }
+            }
+            catch (IOException ignored) {
+            }
+        });
+        // The rest of the input belongs to whatever the session runs next.
+        p.onExit().thenRun(feeder::interrupt);
+    }
+}
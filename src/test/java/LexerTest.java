@@ -0,0 +1,141 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+// The lexer against the shell's quoting rules, as bash applies them: single
+// quotes, double quotes, backslashes, fragments joined into one word, and
+// operators that quoting turns back into words.
+class LexerTest {
+    private static final String[] NAMES = {
+        "END", "WORD", "IO_NUMBER", "|", "&&", "||", ";", ">", ">>", ">&", "&>", "&>>", "&", "<", "<<", "<<-", "<<<",
+    };
+
+    // The tokens of line: a WORD or IO_NUMBER as its text in brackets, an
+    // operator as itself.
+    private static List<String> tokens(String line) {
+        Lexer lexer = new Lexer();
+        lexer.reset(line);
+        List<String> tokens = new ArrayList<>();
+        int token;
+        while ((token = lexer.next()) != Lexer.END) {
+            if (token == Lexer.WORD)
+                tokens.add("[" + lexer.text() + "]");
+            else if (token == Lexer.IO_NUMBER)
+                tokens.add("IO_NUMBER[" + lexer.text() + "]");
+            else
+                tokens.add(NAMES[token]);
+        }
+        return tokens;
+    }
+
+    private static void assertTokens(String line, String... expected) {
+        assertEquals(List.of(expected), tokens(line), line);
+    }
+
+    @Test
+    void splitsOnUnquotedWhitespace() {
+        assertTokens("echo  hello \t world", "[echo]", "[hello]", "[world]");
+        assertTokens("   ");
+    }
+
+    @Test
+    void singleQuotesAreLiteral() {
+        assertTokens("echo 'hello   world'", "[echo]", "[hello   world]");
+        assertTokens("'a\\b'", "[a\\b]");
+        assertTokens("'a\"b'", "[a\"b]");
+        assertTokens("'$(pwd) `pwd`'", "[$(pwd) `pwd`]");
+        assertTokens("''", "[]");
+    }
+
+    @Test
+    void doubleQuotesKeepWhitespaceAndSingleQuotes() {
+        assertTokens("\"hello   world\"", "[hello   world]");
+        assertTokens("\"it's\"", "[it's]");
+        assertTokens("\"\"", "[]");
+    }
+
+    @Test
+    void backslashInDoubleQuotesEscapesOnlyItsSpecials() {
+        assertTokens("\"a\\\"b\"", "[a\"b]");
+        assertTokens("\"a\\\\b\"", "[a\\b]");
+        assertTokens("\"a\\$b\"", "[a$b]");
+        assertTokens("\"a\\nb\"", "[a\\nb]");
+        assertTokens("\"a\\'b\"", "[a\\'b]");
+    }
+
+    @Test
+    void unquotedBackslashEscapesAnyCharacter() {
+        assertTokens("a\\ b", "[a b]");
+        assertTokens("a\\nb", "[anb]");
+        assertTokens("\\'x\\'", "['x']");
+        assertTokens("\\\"x\\\"", "[\"x\"]");
+        assertTokens("\\\\", "[\\]");
+    }
+
+    @Test
+    void adjacentFragmentsJoinIntoOneWord() {
+        assertTokens("'a'\"b\"c", "[abc]");
+        assertTokens("a\"b c\"'d e'", "[ab cd e]");
+        assertTokens("''''x", "[x]");
+        assertTokens("\"a\"\\ 'b'", "[a b]");
+        assertTokens("'x' 'y'", "[x]", "[y]");
+    }
+
+    @Test
+    void operatorsSplitUnquotedWords() {
+        assertTokens("a|b", "[a]", "|", "[b]");
+        assertTokens("a&&b||c;d&", "[a]", "&&", "[b]", "||", "[c]", ";", "[d]", "&");
+        assertTokens("a>b>>c", "[a]", ">", "[b]", ">>", "[c]");
+        assertTokens("cat<in<<EOF", "[cat]", "<", "[in]", "<<", "[EOF]");
+        assertTokens("a &>f &>>g 2>&1", "[a]", "&>", "[f]", "&>>", "[g]", "IO_NUMBER[2]", ">&", "[1]");
+    }
+
+    @Test
+    void quotedOperatorsAreWords() {
+        assertTokens("echo '|' \"&&\" \\; '>'", "[echo]", "[|]", "[&&]", "[;]", "[>]");
+        assertTokens("a\\|b", "[a|b]");
+        assertTokens("\"a > b\"", "[a > b]");
+        assertTokens("'a;b'c", "[a;bc]");
+    }
+
+    @Test
+    void onlyUnquotedDigitsBeforeARedirectAreAnIoNumber() {
+        assertTokens("2>f", "IO_NUMBER[2]", ">", "[f]");
+        assertTokens("'2'>f", "[2]", ">", "[f]");
+        assertTokens("\\2>f", "[2]", ">", "[f]");
+        assertTokens("2 >f", "[2]", ">", "[f]");
+        assertTokens("a2>f", "[a2]", ">", "[f]");
+    }
+
+    @Test
+    void quotingIsRecordedForKeywords() {
+        Lexer lexer = new Lexer();
+        lexer.reset("time 'time' t\\ime");
+        assertEquals(Lexer.WORD, lexer.next());
+        assertFalse(lexer.quoted());
+        assertEquals(Lexer.WORD, lexer.next());
+        assertTrue(lexer.quoted());
+        assertEquals(Lexer.WORD, lexer.next());
+        assertTrue(lexer.quoted());
+        assertEquals("time", lexer.text());
+    }
+
+    @Test
+    void quotedGlobCharactersAreEscapedInThePattern() {
+        Lexer lexer = new Lexer();
+        lexer.reset("*.txt '*'.txt *'?'\\[");
+        lexer.next();
+        assertEquals("*.txt", lexer.pattern());
+        lexer.next();
+        assertNull(lexer.pattern());
+        lexer.next();
+        assertEquals("*\\?\\[", lexer.pattern());
+    }
+
+    @Test
+    void unterminatedSubstitutionIsASyntaxError() {
+        assertThrows(Parser.SyntaxException.class, () -> tokens("echo $(pwd"));
+        assertThrows(Parser.SyntaxException.class, () -> tokens("echo \"$(pwd\""));
+    }
+}
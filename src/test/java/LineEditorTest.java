@@ -0,0 +1,49 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+// The line editor waiting at a prompt must block in read, not poll: over a
+// second and a half of no input the reading thread may use a few
+// milliseconds of CPU, where a polling loop would use all of it.
+class LineEditorTest {
+    private static final long IDLE_MILLIS = 1500;
+    private static final long MAX_IDLE_CPU_MILLIS = 50;
+
+    @Test
+    void idlePromptUsesNoCpu(@TempDir Path dir) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled(),
+                "no per-thread CPU time on this JVM");
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            // A real pipe that stays open and empty until sleep is killed,
+            // as a terminal does while nobody types.
+            Process quiet = new ProcessBuilder("sleep", "60").start();
+            LineEditor editor = new LineEditor(quiet.getInputStream(), new PrintStream(OutputStream.nullOutputStream()),
+                    History.open(dir.resolve("history")), () -> dir, () -> null);
+            CompletableFuture<String> line = new CompletableFuture<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    line.complete(editor.readLine("$ "));
+                }
+                catch (IOException e) {
+                    line.completeExceptionally(e);
+                }
+            }, "line-editor");
+            reader.start();
+            Thread.sleep(100);
+            long before = threads.getThreadCpuTime(reader.getId());
+            Thread.sleep(IDLE_MILLIS);
+            long used = (threads.getThreadCpuTime(reader.getId()) - before) / 1_000_000;
+            assertFalse(line.isDone(), "readLine returned with no input");
+            quiet.destroy();
+            assertNull(line.get(), "end of input");
+            assertTrue(used <= MAX_IDLE_CPU_MILLIS, "idle prompt used " + used + " ms of CPU in " + IDLE_MILLIS + " ms");
+        });
+    }
+}
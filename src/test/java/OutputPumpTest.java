@@ -0,0 +1,139 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+// Hundreds of megabytes through OutputPump: a child's stdout and stderr
+// drained at once, stdin fed while stdout is drained, and a pipeline that
+// crosses between processes and builtins in both directions. Each must
+// finish, with every byte accounted for, well inside its timeout; a pump
+// that stalled on a full pipe would hang instead. The throughput floor is
+// far below what the pumps manage on one slow core, so it only trips when
+// something copies a byte at a time or blocks between reads.
+class OutputPumpTest {
+    private static final long MB = 1024 * 1024;
+    private static final long MIN_BYTES_PER_SECOND = 20 * MB;
+    private static final Duration TIMEOUT = Duration.ofSeconds(120);
+
+    // Counts what is written and keeps none of it.
+    private static final class Counter extends OutputStream {
+        private long count;
+
+        @Override
+        public synchronized void write(int b) {
+            count++;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        synchronized long count() {
+            return count;
+        }
+    }
+
+    // n zero bytes, read without holding them.
+    private static InputStream zeros(long n) {
+        return new InputStream() {
+            private long left = n;
+
+            @Override
+            public int read() {
+                if (left == 0)
+                    return -1;
+                left--;
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (left == 0)
+                    return -1;
+                int count = (int) Math.min(len, left);
+                Arrays.fill(b, off, off + count, (byte) 0);
+                left -= count;
+                return count;
+            }
+        };
+    }
+
+    private static void assertThroughput(long bytes, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        double rate = bytes / seconds;
+        assertTrue(rate >= MIN_BYTES_PER_SECOND,
+                String.format("%d MB in %.2f s is %.1f MB/s", bytes / MB, seconds, rate / MB));
+    }
+
+    @Test
+    void drainsStdoutAndStderrTogether() {
+        long out = 256 * MB;
+        long err = 128 * MB;
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Writes all of stdout before any stderr: reading stderr to its
+            // end first would wait forever on a child blocked on a full
+            // stdout pipe.
+            ProcessBuilder pb = new ProcessBuilder("sh", "-c",
+                    "head -c " + out + " /dev/zero; head -c " + err + " /dev/zero >&2");
+            long start = System.nanoTime();
+            Process p = pb.start();
+            p.getOutputStream().close();
+            Counter stdout = new Counter();
+            Counter stderr = new Counter();
+            List<CompletableFuture<Long>> pumps = List.of(
+                    OutputPump.start(ProcessBuilder.Redirect.PIPE, p.getInputStream(), stdout),
+                    OutputPump.start(ProcessBuilder.Redirect.PIPE, p.getErrorStream(), stderr));
+            assertEquals(0, p.waitFor());
+            assertEquals(out + err, OutputPump.join(pumps));
+            assertEquals(out, stdout.count());
+            assertEquals(err, stderr.count());
+            assertThroughput(out + err, start);
+        });
+    }
+
+    @Test
+    void feedsStdinWhileDrainingStdout() {
+        long size = 256 * MB;
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // cat fills its stdout pipe long before its stdin is done, so
+            // feeding and draining must go on at once.
+            long start = System.nanoTime();
+            Process p = new ProcessBuilder("cat").redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            Counter stdout = new Counter();
+            CompletableFuture<Long> fed = OutputPump.feed(zeros(size), p.getOutputStream());
+            CompletableFuture<Long> drained = OutputPump.start(ProcessBuilder.Redirect.PIPE, p.getInputStream(), stdout);
+            assertEquals(0, p.waitFor());
+            assertEquals(size, fed.join());
+            assertEquals(size, drained.join());
+            assertEquals(size, stdout.count());
+            assertThroughput(2 * size, start);
+        });
+    }
+
+    @Test
+    void pipelineCrossingBuiltinsAndProcesses() {
+        long size = 256 * MB;
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // With set -o coreutils, head, cat and wc are builtins: the bytes
+            // go from a builtin to a process (tr), back to a builtin, to
+            // another builtin, then out through a process (cat -u), which
+            // is pumped into the session's stdout.
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Session session = new Session(Path.of(System.getProperty("user.dir")), new HashMap<>(System.getenv()),
+                    InputStream.nullInputStream(), new PrintStream(out, true), new PrintStream(OutputStream.nullOutputStream()),
+                    false);
+            String script = "set -o coreutils\n"
+                    + "head -c " + size + " /dev/zero | tr '\\0' x | cat | wc -c | /bin/cat -u\n";
+            long start = System.nanoTime();
+            assertEquals(0, session.runScript(new BufferedReader(new StringReader(script))));
+            assertEquals(Long.toString(size), out.toString(StandardCharsets.UTF_8).trim());
+            assertThroughput(size, start);
+        });
+    }
+}